@@ -0,0 +1,345 @@
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+
+/**
+	Fast scanner for pure ASCII NanoMorpho sources.
+
+	The file is memory mapped and its bytes are scanned directly,
+	without charset decoding or the character class tables of the
+	generated NanoMorphoLexer.  The tokens, lines and columns are the
+	same as nanomorpholexer.jflex produces.  As soon as a byte outside
+	ASCII is seen the scan is abandoned and the file is handed to
+	NanoMorphoLexer instead.  The same happens on a vertical tab
+	outside literals, which no rule matches, so that NanoMorphoLexer
+	reports the error.
+ */
+public final class AsciiLexer
+{
+    private final ByteBuffer src;
+    private final int n;
+    private final TokenBuffer tokens;
+    private int line, lineStart;
+    private boolean afterCR;
+    private boolean ascii = true;
+
+    private AsciiLexer( ByteBuffer src )
+    {
+        this.src = src;
+        this.n = src.limit();
+        this.tokens = new TokenBuffer(src);
+    }
+
+    /**
+    	Returns the tokens of the named file, using the ASCII scanner
+    	when possible and NanoMorphoLexer otherwise.
+     */
+    public static TokenBuffer tokenize( String filename ) throws IOException
+    {
+        ByteBuffer src;
+        try( FileChannel ch = FileChannel.open(Paths.get(filename),StandardOpenOption.READ) )
+        {
+            src = ch.map(FileChannel.MapMode.READ_ONLY,0,ch.size());
+        }
+        TokenBuffer res = tokenize(src);
+        if( res!=null ) return res;
+        return NanoMorphoLexer.tokenize(filename);
+    }
+
+    /**
+    	Returns the tokens of src, or null if src is not pure ASCII.
+     */
+    public static TokenBuffer tokenize( ByteBuffer src )
+    {
+        return new AsciiLexer(src).scan();
+    }
+
+    private TokenBuffer scan()
+    {
+        int i = 0;
+        while( i<n )
+        {
+            int c = src.get(i);
+            if( c<0 ) return null;
+            int end;
+            switch( c )
+            {
+            case ' ': case '\t':
+                i++;
+                afterCR = false;
+                continue;
+            case '\r': case '\n': case '\f':
+                newline(i,c);
+                i++;
+                continue;
+            case '(': case ')': case '{': case '}': case ',':
+                end = emit(c,i,i+1);
+                break;
+            case ';':
+                end = comment(i);
+                if( end<0 ) end = emit(';',i,i+1);
+                break;
+            case '"':
+                end = string(i);
+                break;
+            case '\'':
+                end = character(i);
+                break;
+            default:
+                if( isOpChar(c) )
+                    end = opname(i);
+                else if( isLetter(c) || isDigit(c) )
+                    end = word(i);
+                else if( c=='\u000B' )
+                    return null;
+                else
+                    end = emit(NanoMorphoParser.ERROR,i,i+1);
+            }
+            if( !ascii ) return null;
+            afterCR = false;
+            i = end;
+        }
+        return tokens;
+    }
+
+    /**
+    	Records a token of the given kind covering [from,to) and
+    	returns to.  Tokens other than literals never contain line
+    	terminators, so the column is just the distance from the start
+    	of the line.
+     */
+    private int emit( int kind, int from, int to )
+    {
+        tokens.add(kind,from,to-from,line,from-lineStart);
+        return to;
+    }
+
+    /**
+    	Counts a line terminator c at i the way JFlex does: \r, \n,
+    	\r\n, \u000B and \u000C each end a line.
+     */
+    private void newline( int i, int c )
+    {
+        if( c!='\n' || !afterCR ) line++;
+        afterCR = c=='\r';
+        lineStart = i+1;
+    }
+
+    private int literal( int from, int to )
+    {
+        emit(NanoMorphoParser.LITERAL,from,to);
+        literalLines(from,to);
+        return to;
+    }
+
+    /**
+    	Counts the line terminators inside the literal [from,to).
+     */
+    private void literalLines( int from, int to )
+    {
+        for( int i=from ; i!=to ; i++ )
+        {
+            int c = src.get(i);
+            if( c=='\r' || c=='\n' || c=='\u000B' || c=='\u000C' )
+                newline(i,c);
+            else
+                afterCR = false;
+        }
+    }
+
+    /**
+    	Returns the end of the comment ";;;.*$" starting at i, or -1 if
+    	there is none.  As in JFlex, . stops at any line terminator and
+    	$ needs one after the comment, so a comment at the very end of
+    	the file does not match.
+     */
+    private int comment( int i )
+    {
+        if( i+2>=n || src.get(i+1)!=';' || src.get(i+2)!=';' ) return -1;
+        for( int j=i+3 ; j<n ; j++ )
+        {
+            int c = src.get(j);
+            if( c<0 ) ascii = false;
+            if( c=='\n' || c=='\r' || c=='\u000B' || c=='\u000C' ) return j;
+        }
+        return -1;
+    }
+
+    private int opname( int i )
+    {
+        int j = i+1;
+        while( j<n && isOpChar(src.get(j)) ) j++;
+        if( j==i+1 && src.get(i)=='=' ) return emit('=',i,j);
+        return emit(NanoMorphoParser.OPNAME,i,j);
+    }
+
+    /**
+    	Scans a name, keyword, number or the literals null, true and false.
+     */
+    private int word( int i )
+    {
+        int j = i;
+        boolean digits = true;
+        while( j<n )
+        {
+            int c = src.get(j);
+            if( isDigit(c) ) j++;
+            else if( isLetter(c) ) { j++; digits = false; }
+            else break;
+        }
+        if( digits )
+        {
+            if( j+1<n && src.get(j)=='.' && isDigit(src.get(j+1)) )
+            {
+                j += 2;
+                while( j<n && isDigit(src.get(j)) ) j++;
+                if( j<n && (src.get(j)=='e' || src.get(j)=='E') )
+                {
+                    int k = j+1;
+                    if( k<n && (src.get(k)=='+' || src.get(k)=='-') ) k++;
+                    if( k<n && isDigit(src.get(k)) )
+                    {
+                        while( k<n && isDigit(src.get(k)) ) k++;
+                        j = k;
+                    }
+                }
+            }
+            return emit(NanoMorphoParser.LITERAL,i,j);
+        }
+        return emit(keyword(i,j-i),i,j);
+    }
+
+    private int keyword( int i, int len )
+    {
+        switch( len )
+        {
+        case 2:
+            if( is(i,"if") ) return NanoMorphoParser.IF;
+            break;
+        case 3:
+            if( is(i,"var") ) return NanoMorphoParser.VAR;
+            break;
+        case 4:
+            if( is(i,"else") ) return NanoMorphoParser.ELSE;
+            if( is(i,"null") || is(i,"true") ) return NanoMorphoParser.LITERAL;
+            break;
+        case 5:
+            if( is(i,"elsif") ) return NanoMorphoParser.ELSIF;
+            if( is(i,"while") ) return NanoMorphoParser.WHILE;
+            if( is(i,"false") ) return NanoMorphoParser.LITERAL;
+            break;
+        case 6:
+            if( is(i,"return") ) return NanoMorphoParser.RETURN;
+            break;
+        }
+        return NanoMorphoParser.NAME;
+    }
+
+    private boolean is( int i, String word )
+    {
+        for( int k=0 ; k!=word.length() ; k++ )
+            if( src.get(i+k)!=word.charAt(k) ) return false;
+        return true;
+    }
+
+    /**
+    	Scans a string literal.  An unterminated string or a bad escape
+    	makes the opening quote an ERROR token, as in JFlex.
+     */
+    private int string( int i )
+    {
+        int j = i+1;
+        while( j<n )
+        {
+            int c = src.get(j);
+            if( c<0 ) ascii = false;
+            if( c=='"' ) return literal(i,j+1);
+            if( c=='\\' )
+            {
+                int len = escape(j+1);
+                if( len<0 ) break;
+                j += 1+len;
+            }
+            else
+                j++;
+        }
+        return emit(NanoMorphoParser.ERROR,i,i+1);
+    }
+
+    /**
+    	Scans a character literal, with the same error handling as string.
+     */
+    private int character( int i )
+    {
+        int j = i+1;
+        if( j>=n ) return emit(NanoMorphoParser.ERROR,i,i+1);
+        int c = src.get(j);
+        if( c<0 ) ascii = false;
+        if( c!='\\' )
+        {
+            if( c!='\'' && j+1<n && src.get(j+1)=='\'' ) return literal(i,j+2);
+            return emit(NanoMorphoParser.ERROR,i,i+1);
+        }
+        int e = j+1;
+        if( e<n && src.get(e)<0 ) ascii = false;
+        if( escape(e)==1 && !isOctal(src.get(e)) )
+        {
+            if( e+1<n && src.get(e+1)=='\'' ) return emit(NanoMorphoParser.LITERAL,i,e+2);
+            return emit(NanoMorphoParser.ERROR,i,i+1);
+        }
+        for( int len=1 ; len<=3 && e+len<=n ; len++ )
+        {
+            if( !isOctal(src.get(e+len-1)) ) break;
+            if( len==3 && src.get(e)>'3' ) break;
+            if( e+len<n && src.get(e+len)=='\'' ) return emit(NanoMorphoParser.LITERAL,i,e+len+1);
+        }
+        return emit(NanoMorphoParser.ERROR,i,i+1);
+    }
+
+    /**
+    	Returns the length of the escape sequence after a backslash at
+    	j-1, taking as many octal digits as possible, or -1 if there is
+    	no valid escape there.
+     */
+    private int escape( int j )
+    {
+        if( j>=n ) return -1;
+        switch( src.get(j) )
+        {
+        case 'b': case 't': case 'n': case 'f': case 'r':
+        case '"': case '\'': case '\\':
+            return 1;
+        }
+        if( !isOctal(src.get(j)) ) return -1;
+        if( src.get(j)<='3' && j+2<n && isOctal(src.get(j+1)) && isOctal(src.get(j+2)) ) return 3;
+        if( j+1<n && isOctal(src.get(j+1)) ) return 2;
+        return 1;
+    }
+
+    private static boolean isOpChar( int c )
+    {
+        switch( c )
+        {
+        case '+': case '-': case '*': case '/': case '!': case '%': case '&':
+        case '=': case '>': case '<': case ':': case '^': case '~': case '|': case '?':
+            return true;
+        }
+        return false;
+    }
+
+    private static boolean isLetter( int c )
+    {
+        return (c>='a' && c<='z') || (c>='A' && c<='Z');
+    }
+
+    private static boolean isDigit( int c )
+    {
+        return c>='0' && c<='9';
+    }
+
+    private static boolean isOctal( int c )
+    {
+        return c>='0' && c<='7';
+    }
+}
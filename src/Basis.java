@@ -0,0 +1,303 @@
+import java.io.PrintStream;
+import java.util.HashMap;
+
+/**
+	Values and built-in functions of the Morpho BASIS, for executing
+	generated code inside this program.
+
+	Values are Integer, Double, String, Character, Boolean, null and
+	Pair, the cell built by ':'.  Only false and null count as false.
+	The operators follow the Morpho VM: int arithmetic wraps, an int
+	combined with a double gives a double, == compares numbers by
+	value, strings, characters and booleans by equality and pairs by
+	identity, and ++ joins the printed forms of its operands, with
+	null printed as [].  Only what generated NanoMorpho code needs is
+	provided: the operators, head, tail, write and writeln.
+
+	Each built-in is also a public static method, for code compiled
+	to JVM bytecode.  Runtime errors are thrown as Error.
+ */
+public final class Basis
+{
+    /** A list cell. */
+    public static final class Pair
+    {
+        public final Object head;
+        public final Object tail;
+
+        public Pair( Object head, Object tail )
+        {
+            this.head = head;
+            this.tail = tail;
+        }
+    }
+
+    /**
+    	A built-in function.  apply receives the arguments in
+    	args[base..base+arity-1].
+     */
+    public abstract static class Builtin
+    {
+        public final String name;
+        public final int arity;
+
+        Builtin( String name, int arity )
+        {
+            this.name = name;
+            this.arity = arity;
+        }
+
+        public abstract Object apply( Object[] args, int base );
+    }
+
+    abstract static class Binary extends Builtin
+    {
+        Binary( String name )
+        {
+            super(name,2);
+        }
+
+        public final Object apply( Object[] args, int base )
+        {
+            return apply(args[base],args[base+1]);
+        }
+
+        abstract Object apply( Object x, Object y );
+    }
+
+    abstract static class Unary extends Builtin
+    {
+        Unary( String name )
+        {
+            super(name,1);
+        }
+
+        public final Object apply( Object[] args, int base )
+        {
+            return apply(args[base]);
+        }
+
+        abstract Object apply( Object x );
+    }
+
+    private static PrintStream out = System.out;
+    private static final HashMap<String,Builtin> builtins = new HashMap<String,Builtin>();
+
+    static
+    {
+        add(new Binary("+") { Object apply( Object x, Object y ) { return add(x,y); } });
+        add(new Binary("-") { Object apply( Object x, Object y ) { return sub(x,y); } });
+        add(new Binary("*") { Object apply( Object x, Object y ) { return mul(x,y); } });
+        add(new Binary("/") { Object apply( Object x, Object y ) { return div(x,y); } });
+        add(new Binary("%") { Object apply( Object x, Object y ) { return mod(x,y); } });
+        add(new Binary("<") { Object apply( Object x, Object y ) { return lt(x,y); } });
+        add(new Binary("<=") { Object apply( Object x, Object y ) { return le(x,y); } });
+        add(new Binary(">") { Object apply( Object x, Object y ) { return gt(x,y); } });
+        add(new Binary(">=") { Object apply( Object x, Object y ) { return ge(x,y); } });
+        add(new Binary("==") { Object apply( Object x, Object y ) { return same(x,y); } });
+        add(new Binary("!=") { Object apply( Object x, Object y ) { return !same(x,y); } });
+        add(new Binary("&&") { Object apply( Object x, Object y ) { return and(x,y); } });
+        add(new Binary("||") { Object apply( Object x, Object y ) { return or(x,y); } });
+        add(new Binary("++") { Object apply( Object x, Object y ) { return concat(x,y); } });
+        add(new Binary(":") { Object apply( Object x, Object y ) { return cons(x,y); } });
+        add(new Unary("-") { Object apply( Object x ) { return neg(x); } });
+        add(new Unary("!") { Object apply( Object x ) { return !isTrue(x); } });
+        add(new Unary("head") { Object apply( Object x ) { return head(x); } });
+        add(new Unary("tail") { Object apply( Object x ) { return tail(x); } });
+        add(new Unary("write") { Object apply( Object x ) { return write(x); } });
+        add(new Unary("writeln") { Object apply( Object x ) { return writeln(x); } });
+    }
+
+    private Basis()
+    {
+    }
+
+    private static void add( Builtin b )
+    {
+        builtins.put(b.name+"[f"+b.arity+"]",b);
+    }
+
+    /**
+    	Returns the built-in function name[fN], or null.
+     */
+    public static Builtin lookup( String name, int arity )
+    {
+        return builtins.get(name+"[f"+arity+"]");
+    }
+
+    /**
+    	Sets the stream that write and writeln print to.
+     */
+    public static void setOutput( PrintStream s )
+    {
+        out = s;
+    }
+
+    public static boolean isTrue( Object x )
+    {
+        return x!=null && !Boolean.FALSE.equals(x);
+    }
+
+    public static Object add( Object x, Object y )
+    {
+        if( x instanceof Integer && y instanceof Integer ) return (Integer)x+(Integer)y;
+        return number("+",x)+number("+",y);
+    }
+
+    public static Object sub( Object x, Object y )
+    {
+        if( x instanceof Integer && y instanceof Integer ) return (Integer)x-(Integer)y;
+        return number("-",x)-number("-",y);
+    }
+
+    public static Object mul( Object x, Object y )
+    {
+        if( x instanceof Integer && y instanceof Integer ) return (Integer)x*(Integer)y;
+        return number("*",x)*number("*",y);
+    }
+
+    public static Object div( Object x, Object y )
+    {
+        if( x instanceof Integer && y instanceof Integer )
+        {
+            if( (Integer)y==0 ) throw new Error("Division by zero");
+            return (Integer)x/(Integer)y;
+        }
+        return number("/",x)/number("/",y);
+    }
+
+    public static Object mod( Object x, Object y )
+    {
+        if( x instanceof Integer && y instanceof Integer )
+        {
+            if( (Integer)y==0 ) throw new Error("Division by zero");
+            return (Integer)x%(Integer)y;
+        }
+        return number("%",x)%number("%",y);
+    }
+
+    public static Object neg( Object x )
+    {
+        if( x instanceof Integer ) return -(Integer)x;
+        return -number("-",x);
+    }
+
+    private static double number( String op, Object x )
+    {
+        if( x instanceof Integer || x instanceof Double ) return ((Number)x).doubleValue();
+        throw new Error("Invalid operand for "+op+": "+display(x));
+    }
+
+    /**
+    	Compares two numbers, strings or characters.
+     */
+    public static int compare( String op, Object x, Object y )
+    {
+        if( x instanceof Integer && y instanceof Integer ) return Integer.compare((Integer)x,(Integer)y);
+        if( x instanceof Number && y instanceof Number ) return Double.compare(((Number)x).doubleValue(),((Number)y).doubleValue());
+        if( x instanceof String && y instanceof String ) return ((String)x).compareTo((String)y);
+        if( x instanceof Character && y instanceof Character ) return Character.compare((Character)x,(Character)y);
+        throw new Error("Invalid operands for "+op+": "+display(x)+", "+display(y));
+    }
+
+    public static boolean lt( Object x, Object y )
+    {
+        return compare("<",x,y)<0;
+    }
+
+    public static boolean le( Object x, Object y )
+    {
+        return compare("<=",x,y)<=0;
+    }
+
+    public static boolean gt( Object x, Object y )
+    {
+        return compare(">",x,y)>0;
+    }
+
+    public static boolean ge( Object x, Object y )
+    {
+        return compare(">=",x,y)>=0;
+    }
+
+    public static boolean same( Object x, Object y )
+    {
+        if( x==y ) return true;
+        if( x==null || y==null ) return false;
+        if( x instanceof Number && y instanceof Number )
+        {
+            if( x instanceof Integer && y instanceof Integer ) return ((Integer)x).intValue()==(Integer)y;
+            return ((Number)x).doubleValue()==((Number)y).doubleValue();
+        }
+        if( x instanceof Pair || y instanceof Pair ) return false;
+        return x.equals(y);
+    }
+
+    public static String concat( Object x, Object y )
+    {
+        return (x==null ? "[]" : display(x))+(y==null ? "[]" : display(y));
+    }
+
+    public static Object and( Object x, Object y )
+    {
+        return isTrue(x) ? y : x;
+    }
+
+    public static Object or( Object x, Object y )
+    {
+        return isTrue(x) ? x : y;
+    }
+
+    public static Object cons( Object x, Object y )
+    {
+        return new Pair(x,y);
+    }
+
+    public static Object head( Object x )
+    {
+        return pair(x).head;
+    }
+
+    public static Object tail( Object x )
+    {
+        return pair(x).tail;
+    }
+
+    public static Object write( Object x )
+    {
+        out.print(display(x));
+        return x;
+    }
+
+    public static Object writeln( Object x )
+    {
+        out.println(display(x));
+        return x;
+    }
+
+    private static Pair pair( Object x )
+    {
+        if( x instanceof Pair ) return (Pair)x;
+        throw new Error("Not a pair: "+display(x));
+    }
+
+    /**
+    	Returns the printed form of x, as writeln prints it.  A list is
+    	printed as [a,b,c], and a list ending in a non-null tail t as
+    	[a,b $ t].
+     */
+    public static String display( Object x )
+    {
+        if( !(x instanceof Pair) ) return String.valueOf(x);
+        StringBuilder b = new StringBuilder("[");
+        Object p = x;
+        while( p instanceof Pair )
+        {
+            if( p!=x ) b.append(',');
+            b.append(display(((Pair)p).head));
+            p = ((Pair)p).tail;
+        }
+        if( p!=null ) b.append(" $ ").append(display(p));
+        return b.append(']').toString();
+    }
+}
@@ -0,0 +1,593 @@
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.Arrays;
+import java.util.Vector;
+
+/**
+	Translates parsed functions into JVM bytecode, as a second
+	backend beside CodeGenerator.
+
+	The program becomes one class with a static method f<i>(Object...)
+	returning Object for function i of the FunctionDef array.  Frame
+	slot k is JVM local k, so arguments are the method parameters and
+	local variables are set to null on entry.  Values are the objects
+	of Basis, and calls of functions that the program does not define
+	become calls of the static methods of Basis.  A call of an
+	undefined function is an Error at compile time.
+
+	Conditions of if, elsif and while are jump code, as in
+	CodeGenerator.  An operator call that TypeInference marked INT or
+	DOUBLE unboxes its operands and uses the JVM instruction, except
+	int / and %, which go through Basis so that division by zero
+	fails the same way.  The value of a while loop, and of an if
+	without else where no branch ran, is false, and that of an empty
+	body is null, as CodeGenerator makes them for the other engines.
+
+	With tail calls on, a call of a function to itself in tail
+	position, with nothing else on the operand stack, stores the
+	arguments and jumps back to the start.  Other calls use the JVM
+	stack.
+
+	load() defines the class as a hidden class with
+	MethodHandles.Lookup.defineHiddenClass and returns main, so
+	HotSpot compiles the program like any other Java code.
+ */
+public final class BytecodeGenerator
+{
+    static final String CLASS_NAME = "MorphoProgram";
+    private static final String OBJECT = "Ljava/lang/Object;";
+    private static final String BASIS = "Basis";
+
+    private static final int ACONST_NULL = 0x01;
+    private static final int ICONST_0 = 0x03;
+    private static final int BIPUSH = 0x10;
+    private static final int SIPUSH = 0x11;
+    private static final int LDC = 0x12;
+    private static final int LDC_W = 0x13;
+    private static final int LDC2_W = 0x14;
+    private static final int ALOAD = 0x19;
+    private static final int ASTORE = 0x3a;
+    private static final int POP = 0x57;
+    private static final int DUP = 0x59;
+    private static final int IADD = 0x60;
+    private static final int DADD = 0x63;
+    private static final int ISUB = 0x64;
+    private static final int DSUB = 0x67;
+    private static final int IMUL = 0x68;
+    private static final int DMUL = 0x6b;
+    private static final int DDIV = 0x6f;
+    private static final int DREM = 0x73;
+    private static final int DCMPL = 0x97;
+    private static final int IFEQ = 0x99;
+    private static final int IFNE = 0x9a;
+    private static final int IF_ICMPEQ = 0x9f;
+    private static final int GOTO = 0xa7;
+    private static final int ARETURN = 0xb0;
+    private static final int GETSTATIC = 0xb2;
+    private static final int INVOKEVIRTUAL = 0xb6;
+    private static final int INVOKESTATIC = 0xb8;
+    private static final int CHECKCAST = 0xc0;
+    private static final int WIDE = 0xc4;
+
+    private final boolean tailcalls;
+    private ClassFile cf;
+    private CallGraph graph;
+    private int current;
+
+    private byte[] code;
+    private int pc;
+    private int depth, maxDepth;
+    private int[] labels;
+    private int nextLab;
+    /** Pairs of branch instruction offset and target label. */
+    private final Vector<int[]> fixups = new Vector<int[]>();
+
+    public BytecodeGenerator( Options options )
+    {
+        this.tailcalls = options.tailcalls;
+    }
+
+    /**
+    	Returns the class file for funs.
+     */
+    public byte[] generate( FunctionDef[] funs )
+    {
+        cf = new ClassFile(CLASS_NAME);
+        graph = new CallGraph(funs);
+        for( current=0 ; current!=funs.length ; current++ ) generateFunction(funs[current]);
+        return cf.toByteArray();
+    }
+
+    /**
+    	Compiles funs into a hidden class and returns its main
+    	function, of type ()Object.
+     */
+    public MethodHandle load( FunctionDef[] funs ) throws ReflectiveOperationException
+    {
+        byte[] bytes = generate(funs);
+        int main = graph.lookup("main",0);
+        if( main<0 ) throw new Error("No main[f0]");
+        MethodHandles.Lookup lookup = MethodHandles.lookup().defineHiddenClass(bytes,true);
+        return lookup.findStatic(lookup.lookupClass(),"f"+main,MethodType.methodType(Object.class));
+    }
+
+    private static String descriptor( int argc )
+    {
+        StringBuilder b = new StringBuilder("(");
+        for( int i=0 ; i!=argc ; i++ ) b.append(OBJECT);
+        return b.append(')').append(OBJECT).toString();
+    }
+
+    private void generateFunction( FunctionDef fun )
+    {
+        code = new byte[256];
+        pc = 0;
+        depth = maxDepth = 0;
+        labels = new int[16];
+        nextLab = 0;
+        fixups.clear();
+        for( int k=fun.argCount ; k<fun.argCount+fun.varCount ; k++ )
+        {
+            op(ACONST_NULL,1);
+            local(ASTORE,k,-1);
+        }
+        generateBody(fun.body,true);
+        op(ARETURN,-1);
+        for( int[] f: fixups )
+        {
+            int offset = labels[f[1]]-f[0];
+            if( offset!=(short)offset ) throw new Error("Function "+fun.name+" too large");
+            code[f[0]+1] = (byte)(offset>>8);
+            code[f[0]+2] = (byte)offset;
+        }
+        cf.addMethod(ClassFile.ACC_PUBLIC|ClassFile.ACC_STATIC,"f"+current,descriptor(fun.argCount),
+                     maxDepth,fun.argCount+fun.varCount,Arrays.copyOf(code,pc));
+    }
+
+    private void emit( int b )
+    {
+        if( pc==code.length ) code = Arrays.copyOf(code,2*pc);
+        code[pc++] = (byte)b;
+    }
+
+    private void emit2( int x )
+    {
+        emit(x>>8);
+        emit(x);
+    }
+
+    /**
+    	Emits an instruction that changes the stack depth by delta.
+     */
+    private void op( int opcode, int delta )
+    {
+        emit(opcode);
+        stack(delta);
+    }
+
+    private void op( int opcode, int index, int delta )
+    {
+        op(opcode,delta);
+        emit2(index);
+    }
+
+    private void stack( int delta )
+    {
+        depth += delta;
+        if( depth>maxDepth ) maxDepth = depth;
+    }
+
+    private void local( int opcode, int slot, int delta )
+    {
+        if( slot>255 )
+        {
+            emit(WIDE);
+            op(opcode,slot,delta);
+            return;
+        }
+        op(opcode,delta);
+        emit(slot);
+    }
+
+    private void invokeStatic( String owner, String method, String descriptor, int delta )
+    {
+        op(INVOKESTATIC,cf.methodRef(owner,method,descriptor),delta);
+    }
+
+    private void invokeVirtual( String owner, String method, String descriptor, int delta )
+    {
+        op(INVOKEVIRTUAL,cf.methodRef(owner,method,descriptor),delta);
+    }
+
+    private int newLabel()
+    {
+        if( nextLab==labels.length ) labels = Arrays.copyOf(labels,2*nextLab);
+        labels[nextLab] = -1;
+        return nextLab++;
+    }
+
+    private void label( int lab )
+    {
+        labels[lab] = pc;
+    }
+
+    /**
+    	Emits a branch to lab that pops pops stack entries.
+     */
+    private void branch( int opcode, int lab, int pops )
+    {
+        fixups.add(new int[]{pc,lab});
+        op(opcode,-pops);
+        emit2(0);
+    }
+
+    private void ldc( int index, int delta )
+    {
+        if( index>255 )
+        {
+            op(LDC_W,index,delta);
+            return;
+        }
+        op(LDC,delta);
+        emit(index);
+    }
+
+    private void pushInt( int v )
+    {
+        if( v>=-1 && v<=5 )
+            op(ICONST_0+v,1);
+        else if( v==(byte)v )
+        {
+            op(BIPUSH,1);
+            emit(v);
+        }
+        else if( v==(short)v )
+            op(SIPUSH,v,1);
+        else
+            ldc(cf.integer(v),1);
+    }
+
+    private void generateLiteral( String text )
+    {
+        Object v = Literals.parse(text);
+        if( v==Literals.UNKNOWN ) throw new Error("Invalid literal "+text);
+        if( v==null )
+            op(ACONST_NULL,1);
+        else if( v instanceof Integer )
+        {
+            pushInt((Integer)v);
+            invokeStatic("java/lang/Integer","valueOf","(I)Ljava/lang/Integer;",0);
+        }
+        else if( v instanceof Double )
+        {
+            op(LDC2_W,cf.doubleConstant((Double)v),2);
+            invokeStatic("java/lang/Double","valueOf","(D)Ljava/lang/Double;",-1);
+        }
+        else if( v instanceof Character )
+        {
+            pushInt((Character)v);
+            invokeStatic("java/lang/Character","valueOf","(C)Ljava/lang/Character;",0);
+        }
+        else if( v instanceof Boolean )
+            op(GETSTATIC,cf.fieldRef("java/lang/Boolean",v.toString().toUpperCase(),"Ljava/lang/Boolean;"),1);
+        else
+            ldc(cf.string((String)v),1);
+    }
+
+    /**
+    	Generates code that leaves the value of e on the operand stack.
+     */
+    private void generateExpr( Expr e, boolean tail )
+    {
+        switch( e.kind )
+        {
+        case NanoMorphoParser.NAME:
+            local(ALOAD,((Expr.Name)e).slot,1);
+            return;
+        case NanoMorphoParser.LITERAL:
+            generateLiteral(((Expr.Literal)e).text);
+            return;
+        case NanoMorphoParser.RETURN:
+            generateExpr(((Expr.Return)e).value,true);
+            op(ARETURN,-1);
+            // Unreachable, but the enclosing expression expects a value
+            stack(1);
+            return;
+        case NanoMorphoParser.IF:
+            Expr.If ife = (Expr.If)e;
+            int labEnd = newLabel();
+            for( int i=0 ; i<ife.conds.length ; i++ )
+            {
+                int labElse = newLabel();
+                generateCond(ife.conds[i],false,labElse);
+                generateBody(ife.bodies[i],tail);
+                branch(GOTO,labEnd,1);
+                label(labElse);
+            }
+            if( ife.elseBody.length==0 )
+                op(GETSTATIC,cf.fieldRef("java/lang/Boolean","FALSE","Ljava/lang/Boolean;"),1);
+            else
+                generateBody(ife.elseBody,tail);
+            label(labEnd);
+            return;
+        case NanoMorphoParser.WHILE:
+            Expr.While w = (Expr.While)e;
+            int labStart = newLabel();
+            int labQuit = newLabel();
+            generateCond(w.cond,false,labQuit);
+            for( Expr x: w.pre )
+            {
+                generateExpr(x,false);
+                op(POP,-1);
+            }
+            label(labStart);
+            for( Expr x: w.body )
+            {
+                generateExpr(x,false);
+                op(POP,-1);
+            }
+            generateCond(w.cond,true,labStart);
+            label(labQuit);
+            op(GETSTATIC,cf.fieldRef("java/lang/Boolean","FALSE","Ljava/lang/Boolean;"),1);
+            return;
+        case NanoMorphoParser.OPNAME:
+        case NanoMorphoParser.CALL:
+            generateCall((Expr.Call)e,tail);
+            return;
+        case NanoMorphoParser.STORE:
+            Expr.Store st = (Expr.Store)e;
+            generateExpr(st.value,false);
+            op(DUP,1);
+            local(ASTORE,st.slot,-1);
+            return;
+        case NanoMorphoParser.BLOCK:
+            generateBody(((Expr.Block)e).body,tail);
+            return;
+        }
+    }
+
+    private void generateCall( Expr.Call call, boolean tail )
+    {
+        Expr[] args = call.args;
+        int f = graph.lookup(call);
+        if( f<0 )
+        {
+            if( isBoolean(call) )
+            {
+                // Comparisons and ! produce their value by jump code
+                int labFalse = newLabel();
+                int labEnd = newLabel();
+                generateCond(call,false,labFalse);
+                op(GETSTATIC,cf.fieldRef("java/lang/Boolean","TRUE","Ljava/lang/Boolean;"),1);
+                branch(GOTO,labEnd,1);
+                label(labFalse);
+                op(GETSTATIC,cf.fieldRef("java/lang/Boolean","FALSE","Ljava/lang/Boolean;"),1);
+                label(labEnd);
+                return;
+            }
+            if( generateArithmetic(call) ) return;
+        }
+        int base = depth;
+        for( Expr a: args ) generateExpr(a,false);
+        if( f>=0 )
+        {
+            if( f==current && tail && tailcalls && base==0 )
+            {
+                for( int k=args.length-1 ; k>=0 ; k-- ) local(ASTORE,k,-1);
+                emit(GOTO);
+                if( pc-1!=(short)(pc-1) ) throw new Error("Function "+call.name+" too large");
+                emit2(1-pc);
+                // Unreachable, but the enclosing expression expects a value
+                stack(1);
+                return;
+            }
+            invokeStatic(CLASS_NAME,"f"+f,descriptor(args.length),1-args.length);
+            return;
+        }
+        String method = basisMethod(call);
+        if( method==null ) throw new Error("Undefined function "+CallGraph.key(call.name,args.length));
+        String desc = descriptor(args.length);
+        if( method.equals("concat") ) desc = "("+OBJECT+OBJECT+")Ljava/lang/String;";
+        invokeStatic(BASIS,method,desc,1-args.length);
+    }
+
+    /**
+    	Returns true if call is a built-in comparison or !, whose value
+    	is a Boolean computed by jump code.
+     */
+    private static boolean isBoolean( Expr.Call call )
+    {
+        if( call.kind==NanoMorphoParser.OPNAME ) return call.name.equals("!");
+        return call.args.length==2 && compareIndex(call.name)>=0;
+    }
+
+    /**
+    	Generates an operator call that TypeInference marked INT or
+    	DOUBLE with JVM arithmetic, and returns true, or returns false
+    	and generates nothing.
+     */
+    private boolean generateArithmetic( Expr.Call call )
+    {
+        if( call.kind!=NanoMorphoParser.CALL || call.args.length!=2 ) return false;
+        int k = "+-*/%".indexOf(call.name);
+        if( call.name.length()!=1 || k<0 ) return false;
+        if( call.spec==Code.INT && k<3 )
+        {
+            generateInt(call.args[0]);
+            generateInt(call.args[1]);
+            op(new int[]{IADD,ISUB,IMUL}[k],-1);
+            invokeStatic("java/lang/Integer","valueOf","(I)Ljava/lang/Integer;",0);
+            return true;
+        }
+        if( call.spec==Code.DOUBLE )
+        {
+            generateDouble(call.args[0]);
+            generateDouble(call.args[1]);
+            op(new int[]{DADD,DSUB,DMUL,DDIV,DREM}[k],-2);
+            invokeStatic("java/lang/Double","valueOf","(D)Ljava/lang/Double;",-1);
+            return true;
+        }
+        return false;
+    }
+
+    private void generateInt( Expr e )
+    {
+        generateExpr(e,false);
+        op(CHECKCAST,cf.classRef("java/lang/Integer"),0);
+        invokeVirtual("java/lang/Integer","intValue","()I",0);
+    }
+
+    private void generateDouble( Expr e )
+    {
+        generateExpr(e,false);
+        op(CHECKCAST,cf.classRef("java/lang/Double"),0);
+        invokeVirtual("java/lang/Double","doubleValue","()D",1);
+    }
+
+    /**
+    	Returns the index of a comparison operator in the order of the
+    	JVM conditional branches, eq ne lt ge gt le, or -1.  The
+    	negation of comparison k is k^1.
+     */
+    private static int compareIndex( String op )
+    {
+        switch( op )
+        {
+        case "==": return 0;
+        case "!=": return 1;
+        case "<": return 2;
+        case ">=": return 3;
+        case ">": return 4;
+        case "<=": return 5;
+        default: return -1;
+        }
+    }
+
+    /**
+    	Generates code that jumps to lab if the value of e is jumpIf,
+    	and falls through otherwise, leaving the stack as it was.
+     */
+    private void generateCond( Expr e, boolean jumpIf, int lab )
+    {
+        if( e.kind==NanoMorphoParser.LITERAL )
+        {
+            String text = ((Expr.Literal)e).text;
+            if( text.equals("true") || text.equals("false") )
+            {
+                if( text.equals("true")==jumpIf ) branch(GOTO,lab,0);
+                return;
+            }
+        }
+        else if( e.kind==NanoMorphoParser.OPNAME && ((Expr.Call)e).name.equals("!") )
+        {
+            generateCond(((Expr.Call)e).args[0],!jumpIf,lab);
+            return;
+        }
+        else if( e.kind==NanoMorphoParser.CALL && ((Expr.Call)e).args.length==2 && graph.lookup((Expr.Call)e)<0 )
+        {
+            Expr.Call call = (Expr.Call)e;
+            boolean and = call.name.equals("&&");
+            if( and || call.name.equals("||") )
+            {
+                if( and!=jumpIf )
+                {
+                    generateCond(call.args[0],jumpIf,lab);
+                    generateCond(call.args[1],jumpIf,lab);
+                }
+                else
+                {
+                    int labSkip = newLabel();
+                    generateCond(call.args[0],!jumpIf,labSkip);
+                    generateCond(call.args[1],jumpIf,lab);
+                    label(labSkip);
+                }
+                return;
+            }
+            int k = compareIndex(call.name);
+            if( k>=0 )
+            {
+                int cond = jumpIf ? k : k^1;
+                if( call.spec==Code.INT )
+                {
+                    generateInt(call.args[0]);
+                    generateInt(call.args[1]);
+                    branch(IF_ICMPEQ+cond,lab,2);
+                }
+                else if( call.spec==Code.DOUBLE )
+                {
+                    generateDouble(call.args[0]);
+                    generateDouble(call.args[1]);
+                    // Basis orders doubles by Double.compare but equates them by ==
+                    if( k<2 )
+                        op(DCMPL,-3);
+                    else
+                        invokeStatic("java/lang/Double","compare","(DD)I",-3);
+                    branch(IFEQ+cond,lab,1);
+                }
+                else
+                {
+                    generateExpr(call.args[0],false);
+                    generateExpr(call.args[1],false);
+                    invokeStatic(BASIS,new String[]{"same","same","lt","ge","gt","le"}[k],"("+OBJECT+OBJECT+")Z",-1);
+                    // The helpers return true when comparison k holds, except same for !=
+                    boolean onTrue = k==1 ? !jumpIf : jumpIf;
+                    branch(onTrue ? IFNE : IFEQ,lab,1);
+                }
+                return;
+            }
+        }
+        generateExpr(e,false);
+        invokeStatic(BASIS,"isTrue","("+OBJECT+")Z",0);
+        branch(jumpIf ? IFNE : IFEQ,lab,1);
+    }
+
+    /**
+    	Generates a sequence of expressions, leaving the value of the
+    	last one, or null if there are none.  If tail is true the last
+    	one is in tail position.
+     */
+    private void generateBody( Expr[] body, boolean tail )
+    {
+        if( body.length==0 ) op(ACONST_NULL,1);
+        for( int i=0 ; i<body.length ; i++ )
+        {
+            if( i>0 ) op(POP,-1);
+            generateExpr(body[i],tail && i==body.length-1);
+        }
+    }
+
+    /**
+    	Returns the name of the Basis method for a call of a function
+    	that the program does not define, or null.
+     */
+    private static String basisMethod( Expr.Call call )
+    {
+        if( call.args.length==1 )
+        {
+            switch( call.name )
+            {
+            case "-": return "neg";
+            case "head": return "head";
+            case "tail": return "tail";
+            case "write": return "write";
+            case "writeln": return "writeln";
+            }
+            return null;
+        }
+        if( call.args.length!=2 || call.kind!=NanoMorphoParser.CALL ) return null;
+        switch( call.name )
+        {
+        case "+": return "add";
+        case "-": return "sub";
+        case "*": return "mul";
+        case "/": return "div";
+        case "%": return "mod";
+        case "&&": return "and";
+        case "||": return "or";
+        case "++": return "concat";
+        case ":": return "cons";
+        }
+        return null;
+    }
+}
@@ -0,0 +1,188 @@
+import java.util.HashMap;
+import java.util.Vector;
+
+/**
+	The call graph of a program.
+
+	Functions are identified by name and argument count, as in the
+	Morpho module, and numbered by their index in the FunctionDef
+	array.  The edges are the calls in the function bodies; calls to
+	functions outside the program, such as writeln, are not edges.
+ */
+public final class CallGraph
+{
+    private final HashMap<String,Integer> index = new HashMap<String,Integer>();
+    private final Vector<Vector<Integer>> callees = new Vector<Vector<Integer>>();
+
+    public CallGraph( FunctionDef[] funs )
+    {
+        for( int i=0 ; i!=funs.length ; i++ ) index.put(key(funs[i].name,funs[i].argCount),i);
+        for( FunctionDef f: funs )
+        {
+            Vector<Integer> v = new Vector<Integer>();
+            for( Expr e: f.body ) calls(e,v);
+            callees.add(v);
+        }
+    }
+
+    public static String key( String name, int argc )
+    {
+        return name+"[f"+argc+"]";
+    }
+
+    /**
+    	Returns the index of the function name[fargc], or -1 if the
+    	program does not define it.
+     */
+    public int lookup( String name, int argc )
+    {
+        Integer f = index.get(key(name,argc));
+        return f==null ? -1 : f;
+    }
+
+    /**
+    	Returns the index of the function called by call, or -1 if it
+    	is not a function of the program.
+     */
+    public int lookup( Expr.Call call )
+    {
+        if( call.kind!=NanoMorphoParser.CALL ) return -1;
+        return lookup(call.name,call.args.length);
+    }
+
+    public Vector<Integer> callees( int f )
+    {
+        return callees.get(f);
+    }
+
+    private void calls( Expr e, Vector<Integer> res )
+    {
+        if( e.kind==NanoMorphoParser.CALL )
+        {
+            int g = lookup((Expr.Call)e);
+            if( g>=0 && !res.contains(g) ) res.add(g);
+        }
+        for( Expr c: Expr.children(e) ) calls(c,res);
+    }
+
+    /**
+    	Marks the functions that lie on a cycle of the call graph,
+    	using Tarjan's strongly connected components algorithm.
+     */
+    public boolean[] recursive()
+    {
+        final int n = callees.size();
+        final boolean[] res = new boolean[n];
+        final int[] num = new int[n];
+        final int[] low = new int[n];
+        final boolean[] onStack = new boolean[n];
+        final int[] stack = new int[n];
+        new Object()
+        {
+            int counter, sp;
+
+            void visit( int v )
+            {
+                num[v] = low[v] = ++counter;
+                stack[sp++] = v;
+                onStack[v] = true;
+                for( int w: callees.get(v) )
+                {
+                    if( w==v ) res[v] = true;
+                    if( num[w]==0 )
+                    {
+                        visit(w);
+                        low[v] = Math.min(low[v],low[w]);
+                    }
+                    else if( onStack[w] )
+                        low[v] = Math.min(low[v],num[w]);
+                }
+                if( low[v]!=num[v] ) return;
+                int w, count = 0;
+                int top = sp;
+                do
+                {
+                    w = stack[--sp];
+                    onStack[w] = false;
+                    count++;
+                } while( w!=v );
+                if( count>1 )
+                    for( int k=sp ; k!=top ; k++ ) res[stack[k]] = true;
+            }
+
+            void run()
+            {
+                for( int v=0 ; v!=n ; v++ )
+                    if( num[v]==0 ) visit(v);
+            }
+        }.run();
+        return res;
+    }
+
+    /**
+    	Returns the functions ordered so that each comes after the
+    	functions it calls, except along cycles.
+     */
+    public Vector<Integer> postOrder()
+    {
+        int n = callees.size();
+        Vector<Integer> res = new Vector<Integer>();
+        boolean[] seen = new boolean[n];
+        int[] stack = new int[n];
+        int[] next = new int[n];
+        for( int root=0 ; root!=n ; root++ )
+        {
+            if( seen[root] ) continue;
+            int sp = 0;
+            stack[sp++] = root;
+            seen[root] = true;
+            next[root] = 0;
+            while( sp>0 )
+            {
+                int v = stack[sp-1];
+                Vector<Integer> out = callees.get(v);
+                if( next[v]<out.size() )
+                {
+                    int w = out.get(next[v]++);
+                    if( seen[w] ) continue;
+                    seen[w] = true;
+                    next[w] = 0;
+                    stack[sp++] = w;
+                }
+                else
+                {
+                    res.add(v);
+                    sp--;
+                }
+            }
+        }
+        return res;
+    }
+
+    /**
+    	Returns the functions reachable from the given roots, which
+    	are included themselves.
+     */
+    public boolean[] reachable( int... roots )
+    {
+        boolean[] res = new boolean[callees.size()];
+        int[] stack = new int[callees.size()];
+        int sp = 0;
+        for( int r: roots )
+        {
+            if( res[r] ) continue;
+            res[r] = true;
+            stack[sp++] = r;
+        }
+        while( sp>0 )
+        {
+            for( int w: callees.get(stack[--sp]) )
+            {
+                if( res[w] ) continue;
+                res[w] = true;
+                stack[sp++] = w;
+            }
+        }
+        return res;
+    }
+}
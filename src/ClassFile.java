@@ -0,0 +1,239 @@
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+
+/**
+	A minimal JVM class file writer: a constant pool, and static
+	methods each with a Code attribute.
+
+	Classes are written in version 49 (Java 5), which the JVM still
+	verifies by type inference, so methods need no StackMapTable.
+	There are no fields, interfaces or other attributes, and the
+	superclass is java.lang.Object.
+ */
+public final class ClassFile
+{
+    private static final int CONSTANT_UTF8 = 1;
+    private static final int CONSTANT_INTEGER = 3;
+    private static final int CONSTANT_DOUBLE = 6;
+    private static final int CONSTANT_CLASS = 7;
+    private static final int CONSTANT_STRING = 8;
+    private static final int CONSTANT_FIELDREF = 9;
+    private static final int CONSTANT_METHODREF = 10;
+    private static final int CONSTANT_NAMEANDTYPE = 12;
+
+    public static final int ACC_PUBLIC = 0x0001;
+    public static final int ACC_STATIC = 0x0008;
+    public static final int ACC_FINAL = 0x0010;
+    public static final int ACC_SUPER = 0x0020;
+
+    private final String name;
+    private final ByteArrayOutputStream poolBytes = new ByteArrayOutputStream();
+    private final DataOutputStream pool = new DataOutputStream(poolBytes);
+    private final HashMap<String,Integer> entries = new HashMap<String,Integer>();
+    private int poolCount = 1;
+    private final ByteArrayOutputStream methodBytes = new ByteArrayOutputStream();
+    private final DataOutputStream methods = new DataOutputStream(methodBytes);
+    private int methodCount = 0;
+
+    /**
+    	Starts a class with the given internal name, such as
+    	"MorphoProgram" or "java/lang/Object".
+     */
+    public ClassFile( String name )
+    {
+        this.name = name;
+    }
+
+    public String name()
+    {
+        return name;
+    }
+
+    /**
+    	Returns the index of the entry with the given key, or -1.
+     */
+    private int find( String key )
+    {
+        Integer i = entries.get(key);
+        return i==null ? -1 : i;
+    }
+
+    private int enter( String key, int size )
+    {
+        int i = poolCount;
+        entries.put(key,i);
+        poolCount += size;
+        if( poolCount>0xFFFF ) throw new Error("Constant pool overflow in "+name);
+        return i;
+    }
+
+    public int utf8( String s )
+    {
+        String key = "U"+s;
+        int i = find(key);
+        if( i>=0 ) return i;
+        try
+        {
+            pool.writeByte(CONSTANT_UTF8);
+            pool.writeUTF(s);
+        }
+        catch( IOException e )
+        {
+            throw new Error(e.getMessage());
+        }
+        return enter(key,1);
+    }
+
+    public int classRef( String internalName )
+    {
+        return ref("C"+internalName,CONSTANT_CLASS,utf8(internalName),-1);
+    }
+
+    public int string( String s )
+    {
+        return ref("S"+s,CONSTANT_STRING,utf8(s),-1);
+    }
+
+    public int integer( int v )
+    {
+        String key = "I"+v;
+        int i = find(key);
+        if( i>=0 ) return i;
+        write(CONSTANT_INTEGER,v>>>16,v&0xFFFF);
+        return enter(key,1);
+    }
+
+    /**
+    	Returns the index of a double constant, which takes two pool
+    	entries.
+     */
+    public int doubleConstant( double v )
+    {
+        long bits = Double.doubleToRawLongBits(v);
+        String key = "D"+bits;
+        int i = find(key);
+        if( i>=0 ) return i;
+        write(CONSTANT_DOUBLE,(int)(bits>>>48),(int)(bits>>>32)&0xFFFF);
+        write(-1,(int)(bits>>>16)&0xFFFF,(int)bits&0xFFFF);
+        return enter(key,2);
+    }
+
+    public int methodRef( String owner, String method, String descriptor )
+    {
+        return memberRef(CONSTANT_METHODREF,owner,method,descriptor);
+    }
+
+    public int fieldRef( String owner, String field, String descriptor )
+    {
+        return memberRef(CONSTANT_FIELDREF,owner,field,descriptor);
+    }
+
+    private int memberRef( int tag, String owner, String member, String descriptor )
+    {
+        int nt = ref("N"+member+" "+descriptor,CONSTANT_NAMEANDTYPE,utf8(member),utf8(descriptor));
+        return ref(tag+owner+"."+member+" "+descriptor,tag,classRef(owner),nt);
+    }
+
+    /**
+    	Returns the index of an entry of the given tag referring to one
+    	or two other entries.
+     */
+    private int ref( String key, int tag, int x, int y )
+    {
+        int i = find(key);
+        if( i>=0 ) return i;
+        if( y<0 )
+        {
+            try
+            {
+                pool.writeByte(tag);
+                pool.writeShort(x);
+            }
+            catch( IOException e )
+            {
+                throw new Error(e.getMessage());
+            }
+        }
+        else
+            write(tag,x,y);
+        return enter(key,1);
+    }
+
+    /**
+    	Writes a pool entry of a tag and two u2 values, or only the
+    	values if tag is negative.
+     */
+    private void write( int tag, int x, int y )
+    {
+        try
+        {
+            if( tag>=0 ) pool.writeByte(tag);
+            pool.writeShort(x);
+            pool.writeShort(y);
+        }
+        catch( IOException e )
+        {
+            throw new Error(e.getMessage());
+        }
+    }
+
+    /**
+    	Adds a method with the given bytecode.
+     */
+    public void addMethod( int access, String method, String descriptor, int maxStack, int maxLocals, byte[] code )
+    {
+        if( code.length>0xFFFF ) throw new Error("Method "+method+" too large");
+        if( maxStack>0xFFFF || maxLocals>0xFFFF ) throw new Error("Frame of "+method+" too large");
+        try
+        {
+            methods.writeShort(access);
+            methods.writeShort(utf8(method));
+            methods.writeShort(utf8(descriptor));
+            methods.writeShort(1);
+            methods.writeShort(utf8("Code"));
+            methods.writeInt(12+code.length);
+            methods.writeShort(maxStack);
+            methods.writeShort(maxLocals);
+            methods.writeInt(code.length);
+            methods.write(code);
+            methods.writeShort(0);
+            methods.writeShort(0);
+        }
+        catch( IOException e )
+        {
+            throw new Error(e.getMessage());
+        }
+        methodCount++;
+    }
+
+    public byte[] toByteArray()
+    {
+        int thisClass = classRef(name);
+        int superClass = classRef("java/lang/Object");
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try
+        {
+            out.writeInt(0xCAFEBABE);
+            out.writeShort(0);
+            out.writeShort(49);
+            out.writeShort(poolCount);
+            poolBytes.writeTo(out);
+            out.writeShort(ACC_PUBLIC|ACC_FINAL|ACC_SUPER);
+            out.writeShort(thisClass);
+            out.writeShort(superClass);
+            out.writeShort(0);
+            out.writeShort(0);
+            out.writeShort(methodCount);
+            methodBytes.writeTo(out);
+            out.writeShort(0);
+        }
+        catch( IOException e )
+        {
+            throw new Error(e.getMessage());
+        }
+        return bytes.toByteArray();
+    }
+}
@@ -0,0 +1,248 @@
+import java.util.Arrays;
+
+/**
+	Morpho instructions of one function, as parallel int arrays.
+
+	Instruction i has opcode op(i) and up to two int operands a(i) and
+	b(i).  Literal texts and function names are kept in a constant
+	pool and referred to by index.  Labels are pseudo-instructions
+	whose operand is the label number; label numbers are unique within
+	a program.
+
+	Operands by opcode:
+		FETCH, STORE       a = frame slot
+		MAKEVAL            a = constant index of the literal text
+		CALL               a = constant index of the name, b = argument count
+		GO, GOFALSE,       a = label number
+		GOTRUE, LABEL
+		PUSH, RETURN       none
+		FETCHP, MAKEVALP   as FETCH and MAKEVAL, but push first
+		CALLR              as CALL, but a tail call: the result is
+		                   returned from this function
+		CMPFALSE, CMPTRUE  a = label number, b = constant index of a
+		                   binary operator name: call the operator on
+		                   the pushed value and the accumulator, and
+		                   jump if the result is false (true); written
+		                   as a Call followed by GoFalse (GoTrue)
+
+	NOP marks a deleted instruction; compact() removes them.
+
+	Each instruction also has a type hint, GENERIC unless the operands
+	of an operator call (CALL, CALLR, CMPFALSE, CMPTRUE) are known to
+	be both ints (INT) or both doubles (DOUBLE).  The .masm output has
+	no use for hints; MasmInterpreter, which executes Code directly,
+	starts the inline cache of a hinted operator call specialized.
+
+	Slots 0..argCount-1 hold the arguments and the next varCount slots
+	the local variables.  The function starts with a prologue of
+	varCount (MakeVal null)(Push) pairs that creates the locals.
+ */
+public final class Code
+{
+    public static final int FETCH = 0;
+    public static final int STORE = 1;
+    public static final int MAKEVAL = 2;
+    public static final int PUSH = 3;
+    public static final int CALL = 4;
+    public static final int GO = 5;
+    public static final int GOFALSE = 6;
+    public static final int RETURN = 7;
+    public static final int LABEL = 8;
+    public static final int FETCHP = 9;
+    public static final int MAKEVALP = 10;
+    public static final int CALLR = 11;
+    public static final int GOTRUE = 12;
+    public static final int CMPFALSE = 13;
+    public static final int CMPTRUE = 14;
+    public static final int NOP = -1;
+
+    public static final int GENERIC = 0;
+    public static final int INT = 1;
+    public static final int DOUBLE = 2;
+
+    public final String name;
+    public final int argCount;
+    public int varCount;
+
+    private int[] op = new int[64];
+    private int[] a = new int[64];
+    private int[] b = new int[64];
+    private int[] hint = new int[64];
+    private int size;
+    private String[] constants = new String[16];
+    private int constantCount;
+
+    public Code( String name, int argCount, int varCount )
+    {
+        this.name = name;
+        this.argCount = argCount;
+        this.varCount = varCount;
+    }
+
+    public int size()
+    {
+        return size;
+    }
+
+    public int op( int i )
+    {
+        return op[i];
+    }
+
+    public int a( int i )
+    {
+        return a[i];
+    }
+
+    public int b( int i )
+    {
+        return b[i];
+    }
+
+    public int hint( int i )
+    {
+        return hint[i];
+    }
+
+    public void setHint( int i, int h )
+    {
+        hint[i] = h;
+    }
+
+    public String constant( int index )
+    {
+        return constants[index];
+    }
+
+    /**
+    	Appends an instruction and returns its index.
+     */
+    public int add( int opcode, int x, int y )
+    {
+        if( size==op.length )
+        {
+            op = Arrays.copyOf(op,2*size);
+            a = Arrays.copyOf(a,2*size);
+            b = Arrays.copyOf(b,2*size);
+            hint = Arrays.copyOf(hint,2*size);
+        }
+        op[size] = opcode;
+        a[size] = x;
+        b[size] = y;
+        hint[size] = GENERIC;
+        return size++;
+    }
+
+    /**
+    	Replaces instruction i, keeping its type hint.
+     */
+    public void set( int i, int opcode, int x, int y )
+    {
+        op[i] = opcode;
+        a[i] = x;
+        b[i] = y;
+    }
+
+    /**
+    	Removes all NOP instructions.
+     */
+    public void compact()
+    {
+        int n = 0;
+        for( int i=0 ; i!=size ; i++ )
+        {
+            if( op[i]==NOP ) continue;
+            op[n] = op[i];
+            a[n] = a[i];
+            b[n] = b[i];
+            hint[n] = hint[i];
+            n++;
+        }
+        size = n;
+    }
+
+    public static boolean isJump( int opcode )
+    {
+        return opcode==GO || opcode==GOFALSE || opcode==GOTRUE || opcode==CMPFALSE || opcode==CMPTRUE;
+    }
+
+    /**
+    	True for instructions after which control never falls through.
+     */
+    public static boolean isTerminator( int opcode )
+    {
+        return opcode==GO || opcode==RETURN || opcode==CALLR;
+    }
+
+    public int addConstant( String c )
+    {
+        if( constantCount==constants.length ) constants = Arrays.copyOf(constants,2*constantCount);
+        constants[constantCount] = c;
+        return constantCount++;
+    }
+
+    public void fetch( int slot )
+    {
+        add(FETCH,slot,0);
+    }
+
+    public void store( int slot )
+    {
+        add(STORE,slot,0);
+    }
+
+    public void makeVal( String literal )
+    {
+        add(MAKEVAL,addConstant(literal),0);
+    }
+
+    public void push()
+    {
+        add(PUSH,0,0);
+    }
+
+    public void call( String fname, int argc )
+    {
+        add(CALL,addConstant(fname),argc);
+    }
+
+    public void callR( String fname, int argc )
+    {
+        add(CALLR,addConstant(fname),argc);
+    }
+
+    public void go( int lab )
+    {
+        add(GO,lab,0);
+    }
+
+    public void goFalse( int lab )
+    {
+        add(GOFALSE,lab,0);
+    }
+
+    public void goTrue( int lab )
+    {
+        add(GOTRUE,lab,0);
+    }
+
+    public void cmpFalse( String opname, int lab )
+    {
+        add(CMPFALSE,lab,addConstant(opname));
+    }
+
+    public void cmpTrue( String opname, int lab )
+    {
+        add(CMPTRUE,lab,addConstant(opname));
+    }
+
+    public void ret()
+    {
+        add(RETURN,0,0);
+    }
+
+    public void label( int lab )
+    {
+        add(LABEL,lab,0);
+    }
+}
@@ -0,0 +1,377 @@
+import java.util.Arrays;
+
+/**
+	Translates parsed functions into Code.  One generator is used per
+	compilation, so that label numbers are unique in the program.
+
+	An expression is in tail position when its value is returned
+	right after it is computed: the last expression of a function
+	body, the operand of return, and the last expression of each
+	branch of an if in tail position.  Calls in tail position are
+	emitted as tail calls, so that the Morpho VM reuses the frame,
+	and the branches of an if in tail position return directly
+	instead of jumping to the end of the if.
+
+	Conditions of if, elsif and while are compiled as jump code by
+	generateCond: a comparison operator becomes a compare-and-branch
+	instruction, && and || short-circuit, ! inverts the sense of the
+	jump and the literals true and false become an unconditional jump
+	or nothing.  No boolean is left in the accumulator, so where its
+	value is used, an if without else where no condition held, and a
+	while loop, load false when they are done, and an empty body
+	loads null.  BytecodeGenerator gives the same values.
+
+	With loop rotation a while loop tests its condition once before
+	the first iteration and then at the bottom of the body, so each
+	iteration takes a single conditional backward jump:
+
+		cond jumping on false to _quit
+		_start:
+		body
+		cond jumping on true to _start
+		_quit:
+
+	A loop with a pre-header is always generated this way, with the
+	pre-header between the first test and _start.
+
+	An if with at least MIN_SWITCH conditions that all compare the
+	same variable with == to distinct int literals is compiled as a
+	binary decision tree over the sorted literals using <, ending in
+	== tests of at most LEAF_CASES literals each.  Dispatch then
+	takes O(log n) calls instead of O(n).  Since < fails on values
+	that == merely finds unequal, such as null or a string, this is
+	only done when TypeInference has proved that the variable holds
+	an int, marking every comparison with Code.INT.  The VM's own
+	Switch and Case operations, a hash map dispatch, are not used:
+	they identify a char with its code and fail on values that are
+	not Comparable, unlike ==.
+ */
+public final class CodeGenerator
+{
+    private final boolean tailcalls;
+    private final boolean rotate;
+    private final boolean switches;
+    private int nextLab = 0;
+    private Code out;
+
+    public CodeGenerator( Options options )
+    {
+        this.tailcalls = options.tailcalls;
+        this.rotate = options.rotate;
+        this.switches = options.switches;
+    }
+
+    public Code[] generate( FunctionDef[] funs )
+    {
+        Code[] res = new Code[funs.length];
+        for( int i=0 ; i!=funs.length ; i++ ) res[i] = generateFunction(funs[i]);
+        return res;
+    }
+
+    Code generateFunction( FunctionDef fun )
+    {
+        out = new Code(fun.name,fun.argCount,fun.varCount);
+        for( int k=0 ; k<fun.varCount ; k++ )
+        {
+            out.makeVal("null");
+            out.push();
+        }
+        generateBody(fun.body,true,true);
+        out.ret();
+        return out;
+    }
+
+    void generateExpr( Expr e, boolean tail )
+    {
+        generateExpr(e,tail,true);
+    }
+
+    /**
+    	Generates e, leaving its value in the accumulator if used is
+    	true.  tail implies used.
+     */
+    void generateExpr( Expr e, boolean tail, boolean used )
+    {
+        switch( e.kind )
+        {
+        case NanoMorphoParser.NAME:
+            out.fetch(((Expr.Name)e).slot);
+            return;
+        case NanoMorphoParser.LITERAL:
+            out.makeVal(((Expr.Literal)e).text);
+            return;
+        case NanoMorphoParser.RETURN:
+            generateExpr(((Expr.Return)e).value,true);
+            out.ret();
+            return;
+        case NanoMorphoParser.OPNAME:
+            Expr.Call op = (Expr.Call)e;
+            generateExpr(op.args[0],false);
+            if( tail && tailcalls )
+                out.callR(op.name,1);
+            else
+                out.call(op.name,1);
+            return;
+        case NanoMorphoParser.IF:
+            Expr.If ife = (Expr.If)e;
+            if( switches && generateSwitch(ife,tail,used) ) return;
+            int labElse = nextLab++;
+            int labEnd = nextLab++;
+            for( int i=0 ; i<ife.conds.length ; i++ )
+            {
+                if( i>0 ) labElse = nextLab++;
+                generateCond(ife.conds[i],false,labElse);
+                generateBody(ife.bodies[i],tail,used);
+                if( tail && tailcalls )
+                    out.ret();
+                else
+                    out.go(labEnd);
+                out.label(labElse);
+            }
+            generateElse(ife.elseBody,tail,used);
+            out.label(labEnd);
+            return;
+        case NanoMorphoParser.WHILE:
+            Expr.While w = (Expr.While)e;
+            int labStart = nextLab++;
+            int labQuit = nextLab++;
+            if( rotate || w.pre.length!=0 )
+            {
+                generateCond(w.cond,false,labQuit);
+                generateBody(w.pre,false,false);
+                out.label(labStart);
+                generateBody(w.body,false,false);
+                generateCond(w.cond,true,labStart);
+            }
+            else
+            {
+                out.label(labStart);
+                generateCond(w.cond,false,labQuit);
+                generateBody(w.body,false,false);
+                out.go(labStart);
+            }
+            out.label(labQuit);
+            if( used ) out.makeVal("false");
+            return;
+        case NanoMorphoParser.CALL:
+            Expr.Call call = (Expr.Call)e;
+            Expr[] args = call.args;
+            if( args.length!=0 ) generateExpr(args[0],false);
+            for( int i=1 ; i!=args.length ; i++ )
+            {
+                out.push();
+                generateExpr(args[i],false);
+            }
+            if( tail && tailcalls )
+                out.callR(call.name,args.length);
+            else
+                out.call(call.name,args.length);
+            out.setHint(out.size()-1,call.spec);
+            return;
+        case NanoMorphoParser.STORE:
+            Expr.Store st = (Expr.Store)e;
+            generateExpr(st.value,false);
+            out.store(st.slot);
+            return;
+        case NanoMorphoParser.BLOCK:
+            generateBody(((Expr.Block)e).body,tail,used);
+            return;
+        }
+    }
+
+    static final int MIN_SWITCH = 4;
+    static final int LEAF_CASES = 3;
+
+    /**
+    	Generates ife as a decision tree if it is a switch on one
+    	variable, and returns true, or returns false and generates
+    	nothing.
+     */
+    boolean generateSwitch( Expr.If ife, boolean tail, boolean used )
+    {
+        int n = ife.conds.length;
+        if( n<MIN_SWITCH ) return false;
+        int slot = -1;
+        final int[] keys = new int[n];
+        String[] texts = new String[n];
+        for( int i=0 ; i!=n ; i++ )
+        {
+            Expr c = ife.conds[i];
+            if( c.kind!=NanoMorphoParser.CALL ) return false;
+            Expr.Call call = (Expr.Call)c;
+            if( !call.name.equals("==") || call.args.length!=2 || call.spec!=Code.INT ) return false;
+            Expr x = call.args[0], lit = call.args[1];
+            if( x.kind==NanoMorphoParser.LITERAL )
+            {
+                x = call.args[1];
+                lit = call.args[0];
+            }
+            if( x.kind!=NanoMorphoParser.NAME || lit.kind!=NanoMorphoParser.LITERAL ) return false;
+            if( slot>=0 && ((Expr.Name)x).slot!=slot ) return false;
+            slot = ((Expr.Name)x).slot;
+            texts[i] = ((Expr.Literal)lit).text;
+            Object v = Literals.parse(texts[i]);
+            if( !(v instanceof Integer) ) return false;
+            keys[i] = (Integer)v;
+        }
+        Integer[] order = new Integer[n];
+        for( int i=0 ; i!=n ; i++ ) order[i] = i;
+        Arrays.sort(order,(a,b)->Integer.compare(keys[a],keys[b]));
+        for( int i=1 ; i!=n ; i++ )
+            if( keys[order[i-1]]==keys[order[i]] ) return false;
+
+        int labElse = nextLab++;
+        int labEnd = nextLab++;
+        int[] labArm = new int[n];
+        for( int i=0 ; i!=n ; i++ ) labArm[i] = nextLab++;
+        generateDecision(slot,((Expr.Call)ife.conds[0]).spec,order,texts,labArm,labElse,0,n);
+        for( int i=0 ; i!=n ; i++ )
+        {
+            out.label(labArm[i]);
+            generateBody(ife.bodies[i],tail,used);
+            if( tail && tailcalls )
+                out.ret();
+            else
+                out.go(labEnd);
+        }
+        out.label(labElse);
+        generateElse(ife.elseBody,tail,used);
+        out.label(labEnd);
+        return true;
+    }
+
+    /**
+    	Generates the decision tree for the literals order[lo..hi-1],
+    	jumping to the arm of the literal equal to the variable in
+    	slot, or to labElse if there is none.  spec is the type hint
+    	of the comparisons.
+     */
+    private void generateDecision( int slot, int spec, Integer[] order, String[] texts, int[] labArm, int labElse, int lo, int hi )
+    {
+        if( hi-lo<=LEAF_CASES )
+        {
+            for( int k=lo ; k!=hi ; k++ )
+            {
+                out.fetch(slot);
+                out.push();
+                out.makeVal(texts[order[k]]);
+                out.cmpTrue("==",labArm[order[k]]);
+                out.setHint(out.size()-1,spec);
+            }
+            out.go(labElse);
+            return;
+        }
+        int mid = (lo+hi)/2;
+        int labHigh = nextLab++;
+        out.fetch(slot);
+        out.push();
+        out.makeVal(texts[order[mid]]);
+        out.cmpFalse("<",labHigh);
+        out.setHint(out.size()-1,spec);
+        generateDecision(slot,spec,order,texts,labArm,labElse,lo,mid);
+        out.label(labHigh);
+        generateDecision(slot,spec,order,texts,labArm,labElse,mid,hi);
+    }
+
+    /**
+    	Generates code that jumps to lab if the value of e is jumpIf,
+    	and falls through otherwise.  The accumulator is unspecified
+    	afterwards, since jump code need not compute a boolean, so an
+    	if or while whose value is used loads false itself where no
+    	branch was taken.
+     */
+    void generateCond( Expr e, boolean jumpIf, int lab )
+    {
+        if( e.kind==NanoMorphoParser.LITERAL )
+        {
+            String text = ((Expr.Literal)e).text;
+            if( text.equals("true") || text.equals("false") )
+            {
+                if( text.equals("true")==jumpIf ) out.go(lab);
+                return;
+            }
+        }
+        else if( e.kind==NanoMorphoParser.OPNAME && ((Expr.Call)e).name.equals("!") )
+        {
+            generateCond(((Expr.Call)e).args[0],!jumpIf,lab);
+            return;
+        }
+        else if( e.kind==NanoMorphoParser.CALL && ((Expr.Call)e).args.length==2 )
+        {
+            Expr.Call call = (Expr.Call)e;
+            boolean and = call.name.equals("&&");
+            if( and || call.name.equals("||") )
+            {
+                if( and!=jumpIf )
+                {
+                    // && jumping on false, or || jumping on true
+                    generateCond(call.args[0],jumpIf,lab);
+                    generateCond(call.args[1],jumpIf,lab);
+                }
+                else
+                {
+                    int labSkip = nextLab++;
+                    generateCond(call.args[0],!jumpIf,labSkip);
+                    generateCond(call.args[1],jumpIf,lab);
+                    out.label(labSkip);
+                }
+                return;
+            }
+            if( isComparison(call.name) )
+            {
+                generateExpr(call.args[0],false);
+                out.push();
+                generateExpr(call.args[1],false);
+                if( jumpIf )
+                    out.cmpTrue(call.name,lab);
+                else
+                    out.cmpFalse(call.name,lab);
+                out.setHint(out.size()-1,call.spec);
+                return;
+            }
+        }
+        generateExpr(e,false);
+        if( jumpIf )
+            out.goTrue(lab);
+        else
+            out.goFalse(lab);
+    }
+
+    private static boolean isComparison( String op )
+    {
+        switch( op )
+        {
+        case "<": case "<=": case ">": case ">=": case "==": case "!=":
+            return true;
+        default:
+            return false;
+        }
+    }
+
+    /**
+    	Generates a sequence of expressions; if tail is true the last
+    	one is in tail position, and if used is true its value is
+    	used.  The value of an empty sequence is null.
+     */
+    void generateBody( Expr[] bod, boolean tail, boolean used )
+    {
+        if( bod.length==0 && used ) out.makeVal("null");
+        for( int i=0 ; i<bod.length ; i++ )
+        {
+            boolean last = i==bod.length-1;
+            generateExpr(bod[i],tail && last,used && last);
+        }
+    }
+
+    /**
+    	Generates the else part of an if, reached when no condition
+    	held.  An if without else then has the value false.
+     */
+    private void generateElse( Expr[] elseBody, boolean tail, boolean used )
+    {
+        if( elseBody.length!=0 )
+            generateBody(elseBody,tail,used);
+        else if( used )
+            out.makeVal("false");
+    }
+}
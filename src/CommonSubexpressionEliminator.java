@@ -0,0 +1,236 @@
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+
+/**
+	Local common subexpression elimination.
+
+	The candidates are calls of the pure operators, with two operands
+	that are variables or literals.  An operator is pure if it is in
+	the configured set and the program does not define a function of
+	that name itself.  Expressions are walked in evaluation order
+	within straight-line regions, tracking the candidates computed so
+	far.  A Store to a variable makes the candidates that read it
+	unavailable.  Calls cannot change local variables, so they do not.
+
+	When a candidate is computed again while still available, its
+	first occurrence becomes a Store of the value to a new slot at the
+	end of the frame.  The later occurrences become Fetches of that
+	slot.
+
+	An if condition, and the conditions of the following elsifs,
+	continue the region they appear in.  The right operand of && and
+	|| is scanned in a copy of the region, since the condition may
+	skip it; only its stores carry over.  Each branch starts from what
+	is available after the conditions that guard it.  While loops, and
+	the code after an if or while, start with nothing available.
+ */
+public final class CommonSubexpressionEliminator
+{
+    private final HashSet<String> pure;
+    private int eliminated;
+
+    private CallGraph graph;
+    /** Available candidates by key, with their first occurrence. */
+    private HashMap<String,Expr.Call> available;
+    /** Temporary slots of the first occurrences that are reused. */
+    private final IdentityHashMap<Expr,Integer> temps = new IdentityHashMap<Expr,Integer>();
+    /** First occurrence of each later occurrence. */
+    private final IdentityHashMap<Expr,Expr> reuses = new IdentityHashMap<Expr,Expr>();
+    private int frame;
+
+    public CommonSubexpressionEliminator( Options options )
+    {
+        pure = new HashSet<String>();
+        for( String op: options.pure ) pure.add(op);
+    }
+
+    public FunctionDef[] eliminate( FunctionDef[] funs )
+    {
+        graph = new CallGraph(funs);
+        FunctionDef[] res = new FunctionDef[funs.length];
+        for( int i=0 ; i!=funs.length ; i++ )
+        {
+            FunctionDef f = funs[i];
+            temps.clear();
+            reuses.clear();
+            frame = f.argCount+f.varCount;
+            available = new HashMap<String,Expr.Call>();
+            scanBody(f.body);
+            if( temps.isEmpty() )
+                res[i] = f;
+            else
+                res[i] = new FunctionDef(f.name,f.argCount,frame-f.argCount,rewriteBody(f.body));
+        }
+        return res;
+    }
+
+    /**
+    	Returns the number of occurrences replaced so far.
+     */
+    public int eliminated()
+    {
+        return eliminated;
+    }
+
+    private void scanBody( Expr[] body )
+    {
+        for( Expr e: body ) scan(e);
+    }
+
+    private void scan( Expr e )
+    {
+        switch( e.kind )
+        {
+        case NanoMorphoParser.STORE:
+            Expr.Store st = (Expr.Store)e;
+            scan(st.value);
+            kill(st.slot);
+            return;
+        case NanoMorphoParser.IF:
+            Expr.If ife = (Expr.If)e;
+            for( int i=0 ; i!=ife.conds.length ; i++ )
+            {
+                scan(ife.conds[i]);
+                HashMap<String,Expr.Call> saved = available;
+                available = new HashMap<String,Expr.Call>(saved);
+                scanBody(ife.bodies[i]);
+                available = saved;
+            }
+            scanBody(ife.elseBody);
+            available = new HashMap<String,Expr.Call>();
+            return;
+        case NanoMorphoParser.WHILE:
+            Expr.While w = (Expr.While)e;
+            available = new HashMap<String,Expr.Call>();
+            scan(w.cond);
+            scanBody(w.pre);
+            scanBody(w.body);
+            available = new HashMap<String,Expr.Call>();
+            return;
+        case NanoMorphoParser.CALL:
+            Expr.Call call = (Expr.Call)e;
+            if( isShortCircuit(call) )
+            {
+                // The right operand may be skipped, so what it computes
+                // is not available afterwards, but what it stores to is
+                scan(call.args[0]);
+                HashMap<String,Expr.Call> saved = available;
+                available = new HashMap<String,Expr.Call>(saved);
+                scan(call.args[1]);
+                available = saved;
+                killStores(call.args[1]);
+                return;
+            }
+            scanBody(call.args);
+            String key = key(call);
+            if( key==null ) return;
+            Expr.Call first = available.get(key);
+            if( first==null )
+            {
+                available.put(key,call);
+                return;
+            }
+            if( !temps.containsKey(first) ) temps.put(first,frame++);
+            reuses.put(call,first);
+            return;
+        default:
+            scanBody(Expr.children(e));
+        }
+    }
+
+    /**
+    	Returns true if call is && or ||, whose right operand
+    	CodeGenerator skips in conditions.
+     */
+    private boolean isShortCircuit( Expr.Call call )
+    {
+        return call.args.length==2 && (call.name.equals("&&") || call.name.equals("||")) && graph.lookup(call)<0;
+    }
+
+    /**
+    	Returns the key of call if it is a candidate, otherwise null.
+     */
+    private String key( Expr.Call call )
+    {
+        if( call.args.length!=2 || !pure.contains(call.name) || graph.lookup(call)>=0 ) return null;
+        String a = operand(call.args[0]);
+        String b = operand(call.args[1]);
+        if( a==null || b==null ) return null;
+        return call.name+" "+a+" "+b;
+    }
+
+    private static String operand( Expr e )
+    {
+        if( e.kind==NanoMorphoParser.NAME ) return "#"+((Expr.Name)e).slot;
+        if( e.kind==NanoMorphoParser.LITERAL ) return "="+((Expr.Literal)e).text;
+        return null;
+    }
+
+    private void killStores( Expr e )
+    {
+        if( e.kind==NanoMorphoParser.STORE ) kill(((Expr.Store)e).slot);
+        for( Expr c: Expr.children(e) ) killStores(c);
+    }
+
+    private void kill( int slot )
+    {
+        Iterator<Expr.Call> it = available.values().iterator();
+        while( it.hasNext() )
+        {
+            Expr.Call c = it.next();
+            for( Expr arg: c.args )
+            {
+                if( arg.kind==NanoMorphoParser.NAME && ((Expr.Name)arg).slot==slot )
+                {
+                    it.remove();
+                    break;
+                }
+            }
+        }
+    }
+
+    private Expr[] rewriteBody( Expr[] body )
+    {
+        Expr[] res = new Expr[body.length];
+        for( int i=0 ; i!=body.length ; i++ ) res[i] = rewrite(body[i]);
+        return res;
+    }
+
+    private Expr rewrite( Expr e )
+    {
+        switch( e.kind )
+        {
+        case NanoMorphoParser.RETURN:
+            return new Expr.Return(rewrite(((Expr.Return)e).value));
+        case NanoMorphoParser.STORE:
+            Expr.Store st = (Expr.Store)e;
+            return new Expr.Store(st.slot,rewrite(st.value));
+        case NanoMorphoParser.WHILE:
+            Expr.While w = (Expr.While)e;
+            return new Expr.While(rewrite(w.cond),rewriteBody(w.pre),rewriteBody(w.body));
+        case NanoMorphoParser.IF:
+            Expr.If ife = (Expr.If)e;
+            Expr[][] bodies = new Expr[ife.bodies.length][];
+            for( int i=0 ; i!=bodies.length ; i++ ) bodies[i] = rewriteBody(ife.bodies[i]);
+            return new Expr.If(rewriteBody(ife.conds),bodies,rewriteBody(ife.elseBody));
+        case NanoMorphoParser.BLOCK:
+            return new Expr.Block(rewriteBody(((Expr.Block)e).body));
+        case NanoMorphoParser.CALL:
+        case NanoMorphoParser.OPNAME:
+            Expr first = reuses.get(e);
+            if( first!=null )
+            {
+                eliminated++;
+                return new Expr.Name(temps.get(first));
+            }
+            Expr.Call call = (Expr.Call)e;
+            Expr res = new Expr.Call(call.kind,call.name,rewriteBody(call.args));
+            Integer temp = temps.get(e);
+            return temp==null ? res : new Expr.Store(temp,res);
+        default:
+            return e;
+        }
+    }
+}
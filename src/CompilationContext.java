@@ -0,0 +1,130 @@
+import java.io.*;
+
+/**
+	One compilation of one NanoMorpho source file.
+
+	The source is tokenized up front into a TokenBuffer and parsed
+	by a NanoMorphoParser.  The parsed functions then go through the
+	tree passes that are enabled in the Options:
+
+		ConstantFolder, Inliner, DeadFunctionEliminator,
+		LoopInvariantCodeMotion, CommonSubexpressionEliminator,
+		TypeInference
+
+	They are translated to Code by a CodeGenerator, optimized by a
+	SlotAllocator and a Peephole, and written by a MasmWriter.
+	MasmInterpreter runs the Code from generate() as it is, and the
+	JVM backend, BytecodeGenerator, takes the functions from
+	optimize() instead; neither needs an Emitter.  All
+	of that state is owned by the context, so several contexts may
+	compile different files concurrently on separate threads, as long
+	as each has its own Emitter.
+ */
+public class CompilationContext
+{
+    private final String filename;
+    private final TokenBuffer tokens;
+    private final NanoMorphoParser parser;
+    private final Emitter out;
+    private final Options options;
+
+    public CompilationContext( String filename, Emitter out, Options options ) throws Exception
+    {
+        this.filename = filename;
+        this.tokens = AsciiLexer.tokenize(filename);
+        this.parser = new NanoMorphoParser(tokens,new SymbolTable());
+        this.out = out;
+        this.options = options;
+    }
+
+    public String getFilename()
+    {
+        return filename;
+    }
+
+    /**
+    	Parses the file and runs the enabled tree passes, returning the
+    	functions that compile() translates.  The JVM backend starts
+    	from here.
+     */
+    public FunctionDef[] optimize() throws Exception
+    {
+        FunctionDef[] funs = parser.program();
+        if( options.fold )
+        {
+            ConstantFolder folder = new ConstantFolder();
+            funs = folder.fold(funs);
+            if( options.stats ) System.err.println(filename+": fold: "+folder.folded()+" operator calls");
+        }
+        if( options.inline )
+        {
+            Inliner inliner = new Inliner(options);
+            funs = inliner.inline(funs);
+            if( options.stats ) System.err.println(filename+": inline: "+inliner.inlined()+" calls");
+        }
+        if( options.dce )
+        {
+            DeadFunctionEliminator eliminator = new DeadFunctionEliminator(options);
+            funs = eliminator.eliminate(funs);
+            if( options.stats ) System.err.println(filename+": dce: "+eliminator.removed()+" functions removed");
+        }
+        if( options.licm )
+        {
+            LoopInvariantCodeMotion licm = new LoopInvariantCodeMotion(options);
+            funs = licm.hoist(funs);
+            if( options.stats ) System.err.println(filename+": licm: "+licm.hoisted()+" calls hoisted");
+        }
+        if( options.cse )
+        {
+            CommonSubexpressionEliminator cse = new CommonSubexpressionEliminator(options);
+            funs = cse.eliminate(funs);
+            if( options.stats ) System.err.println(filename+": cse: "+cse.eliminated()+" expressions reused");
+        }
+        if( options.types )
+        {
+            TypeInference types = new TypeInference();
+            funs = types.infer(funs);
+            if( options.stats )
+                for( String line: types.report().split("\n") ) System.err.println(filename+": types: "+line);
+        }
+        return funs;
+    }
+
+    /**
+    	Runs optimize() and translates the functions to optimized
+    	Code, which compile() writes.
+     */
+    public Code[] generate() throws Exception
+    {
+        Code[] code = new CodeGenerator(options).generate(optimize());
+        if( options.slots )
+        {
+            SlotAllocator allocator = new SlotAllocator();
+            for( Code c: code ) allocator.allocate(c);
+            if( options.stats )
+                for( String line: allocator.report().split("\n") ) System.err.println(filename+": slots: "+line);
+        }
+        if( options.peephole )
+        {
+            Peephole peephole = new Peephole(options);
+            for( Code c: code ) peephole.optimize(c);
+            if( options.stats ) System.err.println(filename+": peephole: "+peephole.report());
+        }
+        return code;
+    }
+
+    public void compile() throws Exception
+    {
+        new MasmWriter(out).writeProgram(stripExtension(filename),generate());
+    }
+
+    /**
+    	Returns filename without its extension, if it has one.
+     */
+    public static String stripExtension( String filename )
+    {
+        int dot = filename.lastIndexOf('.');
+        int sep = Math.max(filename.lastIndexOf('/'),filename.lastIndexOf(File.separatorChar));
+        return dot>sep ? filename.substring(0,dot) : filename;
+    }
+}
@@ -0,0 +1,180 @@
+/**
+	Evaluates operator calls on literal operands at compile time.
+
+	Only cases where the Morpho result is certain are folded:
+
+		int op int        + - * exactly, without overflow; / and %
+		                  for a non-negative dividend and positive
+		                  divisor; < <= > >= == !=
+		double op double  + - * / and the comparisons
+		string ++ string, string ++ int
+		bool op bool      && || == !=
+		char == char, char != char
+		null == null, null != null
+		!bool
+
+	Mixed int and double operands are left alone, as are results
+	that cannot be written as a literal, such as negative numbers or
+	lists built with ':'.
+ */
+public final class ConstantFolder
+{
+    private int folded;
+
+    public FunctionDef[] fold( FunctionDef[] funs )
+    {
+        FunctionDef[] res = new FunctionDef[funs.length];
+        for( int i=0 ; i!=funs.length ; i++ )
+        {
+            FunctionDef f = funs[i];
+            res[i] = new FunctionDef(f.name,f.argCount,f.varCount,foldBody(f.body));
+        }
+        return res;
+    }
+
+    /**
+    	Returns the number of operator calls folded so far.
+     */
+    public int folded()
+    {
+        return folded;
+    }
+
+    Expr[] foldBody( Expr[] body )
+    {
+        Expr[] res = new Expr[body.length];
+        for( int i=0 ; i!=body.length ; i++ ) res[i] = fold(body[i]);
+        return res;
+    }
+
+    Expr fold( Expr e )
+    {
+        switch( e.kind )
+        {
+        case NanoMorphoParser.RETURN:
+            return new Expr.Return(fold(((Expr.Return)e).value));
+        case NanoMorphoParser.STORE:
+            Expr.Store st = (Expr.Store)e;
+            return new Expr.Store(st.slot,fold(st.value));
+        case NanoMorphoParser.WHILE:
+            Expr.While w = (Expr.While)e;
+            return new Expr.While(fold(w.cond),foldBody(w.pre),foldBody(w.body));
+        case NanoMorphoParser.IF:
+            Expr.If ife = (Expr.If)e;
+            Expr[][] bodies = new Expr[ife.bodies.length][];
+            for( int i=0 ; i!=bodies.length ; i++ ) bodies[i] = foldBody(ife.bodies[i]);
+            return new Expr.If(foldBody(ife.conds),bodies,foldBody(ife.elseBody));
+        case NanoMorphoParser.BLOCK:
+            return new Expr.Block(foldBody(((Expr.Block)e).body));
+        case NanoMorphoParser.CALL:
+        case NanoMorphoParser.OPNAME:
+            Expr.Call call = (Expr.Call)e;
+            Expr[] args = foldBody(call.args);
+            String text = null;
+            if( call.kind==NanoMorphoParser.CALL && args.length==2 && isLiteral(args[0]) && isLiteral(args[1]) )
+                text = Literals.format(binary(call.name,value(args[0]),value(args[1])));
+            else if( call.kind==NanoMorphoParser.OPNAME && isLiteral(args[0]) )
+                text = Literals.format(unary(call.name,value(args[0])));
+            if( text!=null )
+            {
+                folded++;
+                return new Expr.Literal(text);
+            }
+            return new Expr.Call(call.kind,call.name,args);
+        default:
+            return e;
+        }
+    }
+
+    private static boolean isLiteral( Expr e )
+    {
+        return e.kind==NanoMorphoParser.LITERAL && value(e)!=Literals.UNKNOWN;
+    }
+
+    private static Object value( Expr e )
+    {
+        return Literals.parse(((Expr.Literal)e).text);
+    }
+
+    /**
+    	Returns the value of a op b, or UNKNOWN if it is not certain.
+     */
+    static Object binary( String op, Object a, Object b )
+    {
+        if( a instanceof Integer && b instanceof Integer )
+        {
+            int x = (Integer)a, y = (Integer)b;
+            try
+            {
+                switch( op )
+                {
+                case "+": return Math.addExact(x,y);
+                case "-": return Math.subtractExact(x,y);
+                case "*": return Math.multiplyExact(x,y);
+                case "/": return x>=0 && y>0 ? (Object)(x/y) : Literals.UNKNOWN;
+                case "%": return x>=0 && y>0 ? (Object)(x%y) : Literals.UNKNOWN;
+                case "<": return x<y;
+                case "<=": return x<=y;
+                case ">": return x>y;
+                case ">=": return x>=y;
+                case "==": return x==y;
+                case "!=": return x!=y;
+                }
+            }
+            catch( ArithmeticException e )
+            {
+            }
+            return Literals.UNKNOWN;
+        }
+        if( a instanceof Double && b instanceof Double )
+        {
+            double x = (Double)a, y = (Double)b;
+            switch( op )
+            {
+            case "+": return x+y;
+            case "-": return x-y;
+            case "*": return x*y;
+            case "/": return x/y;
+            case "<": return x<y;
+            case "<=": return x<=y;
+            case ">": return x>y;
+            case ">=": return x>=y;
+            case "==": return x==y;
+            case "!=": return x!=y;
+            }
+            return Literals.UNKNOWN;
+        }
+        if( op.equals("++") && a instanceof String && (b instanceof String || b instanceof Integer) )
+            return (String)a+b;
+        if( a instanceof Boolean && b instanceof Boolean )
+        {
+            boolean x = (Boolean)a, y = (Boolean)b;
+            switch( op )
+            {
+            case "&&": return x && y;
+            case "||": return x || y;
+            case "==": return x==y;
+            case "!=": return x!=y;
+            }
+            return Literals.UNKNOWN;
+        }
+        if( a instanceof Character && b instanceof Character )
+        {
+            if( op.equals("==") ) return a.equals(b);
+            if( op.equals("!=") ) return !a.equals(b);
+            return Literals.UNKNOWN;
+        }
+        if( a==null && b==null )
+        {
+            if( op.equals("==") ) return true;
+            if( op.equals("!=") ) return false;
+        }
+        return Literals.UNKNOWN;
+    }
+
+    static Object unary( String op, Object a )
+    {
+        if( op.equals("!") && a instanceof Boolean ) return !(Boolean)a;
+        return Literals.UNKNOWN;
+    }
+}
@@ -0,0 +1,55 @@
+import java.util.Vector;
+
+/**
+	Removes the functions that cannot be called when the program runs.
+
+	The roots are main and the functions named in the keep list, which
+	is for entry points called from outside the module.  A kept name
+	keeps the functions of that name with any number of arguments.
+	Every function reachable from a root in the CallGraph stays, in
+	its original order; the others are dropped.  A program without
+	main is left as it is.
+ */
+public final class DeadFunctionEliminator
+{
+    private final String[] keep;
+    private int removed;
+
+    public DeadFunctionEliminator( Options options )
+    {
+        this.keep = options.keep;
+    }
+
+    public FunctionDef[] eliminate( FunctionDef[] funs )
+    {
+        CallGraph graph = new CallGraph(funs);
+        int main = graph.lookup("main",0);
+        if( main<0 ) return funs;
+        Vector<Integer> roots = new Vector<Integer>();
+        roots.add(main);
+        for( int f=0 ; f!=funs.length ; f++ )
+            for( String name: keep )
+                if( funs[f].name.equals(name) ) roots.add(f);
+        int[] r = new int[roots.size()];
+        for( int i=0 ; i!=r.length ; i++ ) r[i] = roots.get(i);
+
+        boolean[] live = graph.reachable(r);
+        Vector<FunctionDef> res = new Vector<FunctionDef>();
+        for( int f=0 ; f!=funs.length ; f++ )
+        {
+            if( live[f] )
+                res.add(funs[f]);
+            else
+                removed++;
+        }
+        return res.toArray(new FunctionDef[res.size()]);
+    }
+
+    /**
+    	Returns the number of functions removed so far.
+     */
+    public int removed()
+    {
+        return removed;
+    }
+}
@@ -0,0 +1,249 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.Charset;
+import java.nio.file.*;
+
+/**
+	Buffered writer for Morpho assembly text.
+
+	Instructions are assembled from pre-encoded byte templates and
+	decimal operands directly into a byte buffer, which is written to
+	a channel only when it fills up or is flushed.  A closed emitter
+	hands its buffer on to the next emitter created on the same thread.
+
+	An Emitter is not thread safe; each compilation uses its own.
+ */
+public final class Emitter implements Closeable
+{
+    private static final int BUFFER_SIZE = 1<<16;
+    private static final Charset CHARSET = Charset.defaultCharset();
+    private static final ThreadLocal<byte[]> SPARE = new ThreadLocal<byte[]>();
+
+    private static final byte[] PUSH = bytes("(Push)\n");
+    private static final byte[] RETURN = bytes("(Return)\n");
+    private static final byte[] FETCH = bytes("(Fetch ");
+    private static final byte[] FETCHP = bytes("(FetchP ");
+    private static final byte[] STORE = bytes("(Store ");
+    private static final byte[] MAKEVAL = bytes("(MakeVal ");
+    private static final byte[] MAKEVAL_NULL = bytes("(MakeVal null)\n");
+    private static final byte[] MAKEVALP = bytes("(MakeValP ");
+    private static final byte[] GO = bytes("(Go _");
+    private static final byte[] GOFALSE = bytes("(GoFalse _");
+    private static final byte[] GOTRUE = bytes("(GoTrue _");
+    private static final byte[] CALL = bytes("(Call #\"");
+    private static final byte[] CALLR = bytes("(CallR #\"");
+    private static final byte[] ARITY = bytes("[f");
+    private static final byte[] ARITY_END = bytes("]\" ");
+    private static final byte[] END = bytes(")\n");
+    private static final byte[] LABEL_END = bytes(":\n");
+
+    private final WritableByteChannel channel;
+    private final boolean closeChannel;
+    private final byte[] buf;
+    private int pos;
+
+    public Emitter( WritableByteChannel channel, boolean closeChannel )
+    {
+        this.channel = channel;
+        this.closeChannel = closeChannel;
+        byte[] b = SPARE.get();
+        if( b==null )
+            b = new byte[BUFFER_SIZE];
+        else
+            SPARE.set(null);
+        this.buf = b;
+    }
+
+    /**
+    	Returns an emitter that writes to the named file, replacing it.
+     */
+    public static Emitter toFile( Path file ) throws IOException
+    {
+        return new Emitter(FileChannel.open(file,StandardOpenOption.CREATE,StandardOpenOption.WRITE,StandardOpenOption.TRUNCATE_EXISTING),true);
+    }
+
+    /**
+    	Returns an emitter that writes to the given stream.  Closing
+    	the emitter flushes it but leaves the stream open.
+     */
+    public static Emitter toStream( OutputStream out )
+    {
+        return new Emitter(Channels.newChannel(out),false);
+    }
+
+    private static byte[] bytes( String s )
+    {
+        return s.getBytes(CHARSET);
+    }
+
+    public void push() throws IOException
+    {
+        put(PUSH);
+    }
+
+    public void ret() throws IOException
+    {
+        put(RETURN);
+    }
+
+    public void fetch( int k ) throws IOException
+    {
+        put(FETCH); putInt(k); put(END);
+    }
+
+    public void fetchP( int k ) throws IOException
+    {
+        put(FETCHP); putInt(k); put(END);
+    }
+
+    public void store( int k ) throws IOException
+    {
+        put(STORE); putInt(k); put(END);
+    }
+
+    public void makeVal( String literal ) throws IOException
+    {
+        if( literal.equals("null") )
+        {
+            put(MAKEVAL_NULL);
+            return;
+        }
+        put(MAKEVAL); putString(literal); put(END);
+    }
+
+    public void makeValP( String literal ) throws IOException
+    {
+        put(MAKEVALP); putString(literal); put(END);
+    }
+
+    /**
+    	Emits a call, (Call #"name[fN]" N).  The assembler resolves
+    	BASIS functions, such as prefix operators, by the same form as
+    	functions of this module; (Call "name[fN]" N) does not
+    	assemble.
+     */
+    public void call( String name, int argc ) throws IOException
+    {
+        put(CALL); putString(name); put(ARITY); putInt(argc); put(ARITY_END); putInt(argc); put(END);
+    }
+
+    /**
+    	Emits a tail call, like call().
+     */
+    public void callR( String name, int argc ) throws IOException
+    {
+        put(CALLR); putString(name); put(ARITY); putInt(argc); put(ARITY_END); putInt(argc); put(END);
+    }
+
+    public void label( int lab ) throws IOException
+    {
+        ensure(1);
+        buf[pos++] = '_';
+        putInt(lab);
+        put(LABEL_END);
+    }
+
+    public void go( int lab ) throws IOException
+    {
+        put(GO); putInt(lab); put(END);
+    }
+
+    public void goFalse( int lab ) throws IOException
+    {
+        put(GOFALSE); putInt(lab); put(END);
+    }
+
+    public void goTrue( int lab ) throws IOException
+    {
+        put(GOTRUE); putInt(lab); put(END);
+    }
+
+    /**
+    	Emits s followed by a newline.
+     */
+    public void line( String s ) throws IOException
+    {
+        putString(s);
+        ensure(1);
+        buf[pos++] = '\n';
+    }
+
+    private void put( byte[] b ) throws IOException
+    {
+        if( b.length>buf.length-pos )
+        {
+            flush();
+            if( b.length>buf.length )
+            {
+                ByteBuffer bb = ByteBuffer.wrap(b);
+                while( bb.hasRemaining() ) channel.write(bb);
+                return;
+            }
+        }
+        System.arraycopy(b,0,buf,pos,b.length);
+        pos += b.length;
+    }
+
+    private void putInt( int n ) throws IOException
+    {
+        ensure(11);
+        if( n<0 )
+        {
+            if( n==Integer.MIN_VALUE )
+            {
+                putString(Integer.toString(n));
+                return;
+            }
+            buf[pos++] = '-';
+            n = -n;
+        }
+        int end = pos;
+        for( int m=n ; m>=10 ; m/=10 ) end++;
+        pos = end+1;
+        do
+        {
+            buf[end--] = (byte)('0'+n%10);
+            n /= 10;
+        } while( n!=0 );
+    }
+
+    private void putString( String s ) throws IOException
+    {
+        int n = s.length();
+        for( int i=0 ; i!=n ; i++ )
+        {
+            if( s.charAt(i)>=0x80 )
+            {
+                put(s.getBytes(CHARSET));
+                return;
+            }
+        }
+        if( n>buf.length )
+        {
+            put(s.getBytes(CHARSET));
+            return;
+        }
+        ensure(n);
+        for( int i=0 ; i!=n ; i++ ) buf[pos++] = (byte)s.charAt(i);
+    }
+
+    private void ensure( int n ) throws IOException
+    {
+        if( pos+n>buf.length ) flush();
+    }
+
+    public void flush() throws IOException
+    {
+        ByteBuffer b = ByteBuffer.wrap(buf,0,pos);
+        while( b.hasRemaining() ) channel.write(b);
+        pos = 0;
+    }
+
+    public void close() throws IOException
+    {
+        flush();
+        SPARE.set(buf);
+        if( closeChannel ) channel.close();
+    }
+}
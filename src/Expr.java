@@ -0,0 +1,200 @@
+import java.util.Vector;
+
+/**
+	Expression tree nodes built by NanoMorphoParser.
+
+	Each node carries its kind as one of the NanoMorphoParser token
+	constants (NAME, LITERAL, CALL, ...), so passes dispatch with a
+	switch on kind followed by a cast to the matching final subclass.
+	Nodes are immutable; passes that rewrite code build new nodes.
+ */
+public abstract class Expr
+{
+    public final int kind;
+
+    Expr( int kind )
+    {
+        this.kind = kind;
+    }
+
+    /**
+    	Returns the direct subexpressions of e, in evaluation order.
+     */
+    public static Expr[] children( Expr e )
+    {
+        switch( e.kind )
+        {
+        case NanoMorphoParser.RETURN:
+            return new Expr[]{((Expr.Return)e).value};
+        case NanoMorphoParser.STORE:
+            return new Expr[]{((Expr.Store)e).value};
+        case NanoMorphoParser.WHILE:
+            Expr.While w = (Expr.While)e;
+            Expr[] res = new Expr[w.pre.length+w.body.length+1];
+            res[0] = w.cond;
+            System.arraycopy(w.pre,0,res,1,w.pre.length);
+            System.arraycopy(w.body,0,res,w.pre.length+1,w.body.length);
+            return res;
+        case NanoMorphoParser.IF:
+            Expr.If ife = (Expr.If)e;
+            Vector<Expr> v = new Vector<Expr>();
+            for( int i=0 ; i!=ife.conds.length ; i++ )
+            {
+                v.add(ife.conds[i]);
+                for( Expr b: ife.bodies[i] ) v.add(b);
+            }
+            for( Expr b: ife.elseBody ) v.add(b);
+            return v.toArray(new Expr[v.size()]);
+        case NanoMorphoParser.BLOCK:
+            return ((Expr.Block)e).body;
+        case NanoMorphoParser.CALL:
+        case NanoMorphoParser.OPNAME:
+            return ((Expr.Call)e).args;
+        default:
+            return new Expr[0];
+        }
+    }
+
+    /** Fetch of the local variable in the given frame slot. */
+    public static final class Name extends Expr
+    {
+        public final int slot;
+
+        public Name( int slot )
+        {
+            super(NanoMorphoParser.NAME);
+            this.slot = slot;
+        }
+    }
+
+    /** A literal, kept as its source text. */
+    public static final class Literal extends Expr
+    {
+        public final String text;
+
+        public Literal( String text )
+        {
+            super(NanoMorphoParser.LITERAL);
+            this.text = text;
+        }
+    }
+
+    /**
+    	A call of a named function.  Binary operators and ordinary
+    	calls have kind CALL; prefix operators have kind OPNAME and
+    	are looked up in the environment rather than in the module.
+    	spec is the Code type hint of an operator call whose operand
+    	types are known, as set by TypeInference.
+     */
+    public static final class Call extends Expr
+    {
+        public final String name;
+        public final Expr[] args;
+        public final int spec;
+
+        public Call( String name, Expr[] args )
+        {
+            this(NanoMorphoParser.CALL,name,args);
+        }
+
+        public Call( int kind, String name, Expr[] args )
+        {
+            this(kind,name,args,Code.GENERIC);
+        }
+
+        public Call( int kind, String name, Expr[] args, int spec )
+        {
+            super(kind);
+            this.name = name;
+            this.args = args;
+            this.spec = spec;
+        }
+    }
+
+    /** Assignment of value to the local variable in the given slot. */
+    public static final class Store extends Expr
+    {
+        public final int slot;
+        public final Expr value;
+
+        public Store( int slot, Expr value )
+        {
+            super(NanoMorphoParser.STORE);
+            this.slot = slot;
+            this.value = value;
+        }
+    }
+
+    public static final class Return extends Expr
+    {
+        public final Expr value;
+
+        public Return( Expr value )
+        {
+            super(NanoMorphoParser.RETURN);
+            this.value = value;
+        }
+    }
+
+    /**
+    	if/elsif/else.  conds[i] guards bodies[i]; conds[0] is the if
+    	condition and the rest are the elsif conditions.  elseBody is
+    	empty when there is no else part.
+     */
+    public static final class If extends Expr
+    {
+        public final Expr[] conds;
+        public final Expr[][] bodies;
+        public final Expr[] elseBody;
+
+        public If( Expr[] conds, Expr[][] bodies, Expr[] elseBody )
+        {
+            super(NanoMorphoParser.IF);
+            this.conds = conds;
+            this.bodies = bodies;
+            this.elseBody = elseBody;
+        }
+    }
+
+    /**
+    	A sequence of expressions used as one expression, whose value
+    	is that of the last one.  Not produced by the parser; the
+    	Inliner puts inlined function bodies in blocks.
+     */
+    public static final class Block extends Expr
+    {
+        public final Expr[] body;
+
+        public Block( Expr[] body )
+        {
+            super(NanoMorphoParser.BLOCK);
+            this.body = body;
+        }
+    }
+
+    /**
+    	A while loop.  The pre-header pre is evaluated once, after the
+    	condition first holds and before the body first runs; it is
+    	empty except where LoopInvariantCodeMotion has hoisted code
+    	into it.
+     */
+    public static final class While extends Expr
+    {
+        public final Expr cond;
+        public final Expr[] pre;
+        public final Expr[] body;
+
+        public While( Expr cond, Expr[] body )
+        {
+            this(cond,new Expr[0],body);
+        }
+
+        public While( Expr cond, Expr[] pre, Expr[] body )
+        {
+            super(NanoMorphoParser.WHILE);
+            this.cond = cond;
+            this.pre = pre;
+            this.body = body;
+        }
+    }
+}
@@ -0,0 +1,19 @@
+/**
+	A parsed NanoMorpho function.  Slots 0..argCount-1 of the frame
+	hold the arguments and the next varCount slots the local variables.
+ */
+public final class FunctionDef
+{
+    public final String name;
+    public final int argCount;
+    public final int varCount;
+    public final Expr[] body;
+
+    public FunctionDef( String name, int argCount, int varCount, Expr[] body )
+    {
+        this.name = name;
+        this.argCount = argCount;
+        this.varCount = varCount;
+        this.body = body;
+    }
+}
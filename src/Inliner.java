@@ -0,0 +1,176 @@
+/**
+	Whole-program inliner for small functions.
+
+	A function is a candidate for inlining if it is not recursive,
+	directly or through other functions in the CallGraph, does not
+	contain return, and its body has at most budget nodes.
+
+	Functions are rewritten callees first, so a candidate is inlined
+	with its own calls already inlined.  A call f(e1,...,en) becomes
+	a block that stores e1,...,en in fresh slots of the caller, stores
+	null in fresh slots for the locals of f, and then runs the body of
+	f with its slots moved to the fresh ones.  The locals are reset so
+	that each execution of the block starts from null, as a call
+	would.  A caller stops growing once its body reaches maxSize
+	nodes.
+ */
+public final class Inliner
+{
+    private final int budget;
+    private final int maxSize;
+    private int inlined;
+
+    private FunctionDef[] funs;
+    private CallGraph graph;
+    private int[] size;
+    private boolean[] inlinable;
+
+    /** Frame size of the function being rewritten. */
+    private int frame;
+    private int callerSize;
+
+    public Inliner( Options options )
+    {
+        this.budget = options.inlineBudget;
+        this.maxSize = 50*options.inlineBudget;
+    }
+
+    public FunctionDef[] inline( FunctionDef[] funs )
+    {
+        this.funs = funs.clone();
+        int n = funs.length;
+        graph = new CallGraph(funs);
+        boolean[] recursive = graph.recursive();
+
+        size = new int[n];
+        inlinable = new boolean[n];
+        for( int f: graph.postOrder() )
+        {
+            FunctionDef def = this.funs[f];
+            frame = def.argCount+def.varCount;
+            callerSize = size(def.body);
+            Expr[] body = rewriteBody(def.body);
+            this.funs[f] = new FunctionDef(def.name,def.argCount,frame-def.argCount,body);
+            size[f] = size(body);
+            inlinable[f] = !recursive[f] && size[f]<=budget && body.length>0 && !hasReturn(body);
+        }
+        return this.funs;
+    }
+
+    /**
+    	Returns the number of calls inlined so far.
+     */
+    public int inlined()
+    {
+        return inlined;
+    }
+
+    private Expr[] rewriteBody( Expr[] body )
+    {
+        Expr[] res = new Expr[body.length];
+        for( int i=0 ; i!=body.length ; i++ ) res[i] = rewrite(body[i]);
+        return res;
+    }
+
+    private Expr rewrite( Expr e )
+    {
+        switch( e.kind )
+        {
+        case NanoMorphoParser.RETURN:
+            return new Expr.Return(rewrite(((Expr.Return)e).value));
+        case NanoMorphoParser.STORE:
+            Expr.Store st = (Expr.Store)e;
+            return new Expr.Store(st.slot,rewrite(st.value));
+        case NanoMorphoParser.WHILE:
+            Expr.While w = (Expr.While)e;
+            return new Expr.While(rewrite(w.cond),rewriteBody(w.pre),rewriteBody(w.body));
+        case NanoMorphoParser.IF:
+            Expr.If ife = (Expr.If)e;
+            Expr[][] bodies = new Expr[ife.bodies.length][];
+            for( int i=0 ; i!=bodies.length ; i++ ) bodies[i] = rewriteBody(ife.bodies[i]);
+            return new Expr.If(rewriteBody(ife.conds),bodies,rewriteBody(ife.elseBody));
+        case NanoMorphoParser.BLOCK:
+            return new Expr.Block(rewriteBody(((Expr.Block)e).body));
+        case NanoMorphoParser.CALL:
+        case NanoMorphoParser.OPNAME:
+            Expr.Call call = (Expr.Call)e;
+            Expr[] args = rewriteBody(call.args);
+            int g = graph.lookup(call);
+            if( g<0 || !inlinable[g] || callerSize+size[g]>maxSize )
+                return new Expr.Call(call.kind,call.name,args);
+            return expand(g,args);
+        default:
+            return e;
+        }
+    }
+
+    private Expr expand( int f, Expr[] args )
+    {
+        FunctionDef g = funs[f];
+        int base = frame;
+        frame += g.argCount+g.varCount;
+        callerSize += size[f];
+        inlined++;
+        Expr[] res = new Expr[g.argCount+g.varCount+g.body.length];
+        int k = 0;
+        for( int i=0 ; i!=g.argCount ; i++ ) res[k++] = new Expr.Store(base+i,args[i]);
+        for( int i=0 ; i!=g.varCount ; i++ ) res[k++] = new Expr.Store(base+g.argCount+i,new Expr.Literal("null"));
+        for( Expr e: g.body ) res[k++] = relocate(e,base);
+        return new Expr.Block(res);
+    }
+
+    /**
+    	Returns a copy of e with every slot s moved to base+s.
+     */
+    private static Expr relocate( Expr e, int base )
+    {
+        switch( e.kind )
+        {
+        case NanoMorphoParser.NAME:
+            return new Expr.Name(base+((Expr.Name)e).slot);
+        case NanoMorphoParser.STORE:
+            Expr.Store st = (Expr.Store)e;
+            return new Expr.Store(base+st.slot,relocate(st.value,base));
+        case NanoMorphoParser.WHILE:
+            Expr.While w = (Expr.While)e;
+            return new Expr.While(relocate(w.cond,base),relocateBody(w.pre,base),relocateBody(w.body,base));
+        case NanoMorphoParser.IF:
+            Expr.If ife = (Expr.If)e;
+            Expr[][] bodies = new Expr[ife.bodies.length][];
+            for( int i=0 ; i!=bodies.length ; i++ ) bodies[i] = relocateBody(ife.bodies[i],base);
+            return new Expr.If(relocateBody(ife.conds,base),bodies,relocateBody(ife.elseBody,base));
+        case NanoMorphoParser.BLOCK:
+            return new Expr.Block(relocateBody(((Expr.Block)e).body,base));
+        case NanoMorphoParser.CALL:
+        case NanoMorphoParser.OPNAME:
+            Expr.Call call = (Expr.Call)e;
+            return new Expr.Call(call.kind,call.name,relocateBody(call.args,base));
+        default:
+            return e;
+        }
+    }
+
+    private static Expr[] relocateBody( Expr[] body, int base )
+    {
+        Expr[] res = new Expr[body.length];
+        for( int i=0 ; i!=body.length ; i++ ) res[i] = relocate(body[i],base);
+        return res;
+    }
+
+    /**
+    	Returns the number of nodes in the expressions of body.
+     */
+    static int size( Expr[] body )
+    {
+        int n = 0;
+        for( Expr e: body ) n += 1+size(Expr.children(e));
+        return n;
+    }
+
+    private static boolean hasReturn( Expr[] body )
+    {
+        for( Expr e: body )
+            if( e.kind==NanoMorphoParser.RETURN || hasReturn(Expr.children(e)) ) return true;
+        return false;
+    }
+}
@@ -0,0 +1,85 @@
+import java.util.Arrays;
+
+/**
+	Open addressing map from non-negative int keys to int values.
+
+	Meant to be cleared and reused rather than reallocated; clear()
+	only touches the slots that were filled.
+ */
+public final class IntIntMap
+{
+    public static final int MISSING = -1;
+
+    private int[] keys;
+    private int[] values;
+    private int[] used;
+    private int size;
+
+    public IntIntMap()
+    {
+        keys = new int[16];
+        values = new int[16];
+        used = new int[8];
+        Arrays.fill(keys,-1);
+    }
+
+    /**
+    	Returns the value of key, or MISSING.
+     */
+    public int get( int key )
+    {
+        int mask = keys.length-1;
+        for( int p=mix(key)&mask ; ; p=(p+1)&mask )
+        {
+            int k = keys[p];
+            if( k==key ) return values[p];
+            if( k<0 ) return MISSING;
+        }
+    }
+
+    /**
+    	Maps key to value, replacing any earlier value.
+     */
+    public void put( int key, int value )
+    {
+        int mask = keys.length-1;
+        int p = mix(key)&mask;
+        while( keys[p]>=0 && keys[p]!=key ) p = (p+1)&mask;
+        values[p] = value;
+        if( keys[p]==key ) return;
+        keys[p] = key;
+        if( size==used.length ) used = Arrays.copyOf(used,2*size);
+        used[size++] = p;
+        if( 2*size>keys.length ) grow();
+    }
+
+    public int size()
+    {
+        return size;
+    }
+
+    public void clear()
+    {
+        for( int i=0 ; i!=size ; i++ ) keys[used[i]] = -1;
+        size = 0;
+    }
+
+    private void grow()
+    {
+        int[] oldKeys = keys;
+        int[] oldValues = values;
+        int[] oldUsed = used;
+        int n = size;
+        keys = new int[2*oldKeys.length];
+        values = new int[keys.length];
+        used = new int[keys.length/2];
+        Arrays.fill(keys,-1);
+        size = 0;
+        for( int i=0 ; i!=n ; i++ ) put(oldKeys[oldUsed[i]],oldValues[oldUsed[i]]);
+    }
+
+    private static int mix( int key )
+    {
+        return key*0x9E3779B9>>>16^key;
+    }
+}
@@ -0,0 +1,135 @@
+import java.util.regex.Pattern;
+
+/**
+	Conversion between NanoMorpho literal texts and Java values.
+
+	Integers that fit in an int become Integer, floats Double, strings
+	String, characters Character, true and false Boolean, and null is
+	null.  Literals with no such value, such as integers too large for
+	an int, parse to UNKNOWN.
+ */
+public final class Literals
+{
+    public static final Object UNKNOWN = new Object();
+
+    private static final Pattern FLOAT = Pattern.compile("[0-9]+\\.[0-9]+([eE][+-]?[0-9]+)?");
+
+    private Literals()
+    {
+    }
+
+    public static Object parse( String text )
+    {
+        switch( text.charAt(0) )
+        {
+        case '"':
+            return unescape(text);
+        case '\'':
+            String c = unescape(text);
+            return c.length()==1 ? (Object)c.charAt(0) : UNKNOWN;
+        case 'n':
+            return text.equals("null") ? null : UNKNOWN;
+        case 't':
+            return text.equals("true") ? (Object)Boolean.TRUE : UNKNOWN;
+        case 'f':
+            return text.equals("false") ? (Object)Boolean.FALSE : UNKNOWN;
+        }
+        try
+        {
+            if( text.indexOf('.')>=0 ) return Double.parseDouble(text);
+            return Integer.parseInt(text);
+        }
+        catch( NumberFormatException e )
+        {
+            return UNKNOWN;
+        }
+    }
+
+    /**
+    	Returns the literal text for v, or null if v cannot be written
+    	as a literal; negative numbers, for instance, cannot.
+     */
+    public static String format( Object v )
+    {
+        if( v==null ) return "null";
+        if( v instanceof Boolean ) return v.toString();
+        if( v instanceof Integer ) return (Integer)v>=0 ? v.toString() : null;
+        if( v instanceof Double )
+        {
+            String s = v.toString();
+            return FLOAT.matcher(s).matches() ? s : null;
+        }
+        if( v instanceof Character ) return escape((Character)v+"",'\'');
+        if( v instanceof String ) return escape((String)v,'"');
+        return null;
+    }
+
+    /**
+    	Returns the characters of a string or character literal,
+    	without the quotes and with escapes resolved.
+     */
+    static String unescape( String text )
+    {
+        StringBuilder b = new StringBuilder();
+        int end = text.length()-1;
+        for( int i=1 ; i<end ; i++ )
+        {
+            char c = text.charAt(i);
+            if( c!='\\' )
+            {
+                b.append(c);
+                continue;
+            }
+            c = text.charAt(++i);
+            switch( c )
+            {
+            case 'b': b.append('\b'); break;
+            case 't': b.append('\t'); break;
+            case 'n': b.append('\n'); break;
+            case 'f': b.append('\f'); break;
+            case 'r': b.append('\r'); break;
+            default:
+                if( c>='0' && c<='7' )
+                {
+                    int v = c-'0';
+                    int max = c<='3' ? 2 : 1;
+                    for( int k=0 ; k<max && i+1<end && text.charAt(i+1)>='0' && text.charAt(i+1)<='7' ; k++ )
+                        v = 8*v+text.charAt(++i)-'0';
+                    b.append((char)v);
+                }
+                else
+                    b.append(c);
+            }
+        }
+        return b.toString();
+    }
+
+    static String escape( String s, char quote )
+    {
+        StringBuilder b = new StringBuilder();
+        b.append(quote);
+        for( int i=0 ; i!=s.length() ; i++ )
+        {
+            char c = s.charAt(i);
+            switch( c )
+            {
+            case '\b': b.append("\\b"); break;
+            case '\t': b.append("\\t"); break;
+            case '\n': b.append("\\n"); break;
+            case '\f': b.append("\\f"); break;
+            case '\r': b.append("\\r"); break;
+            case '"': case '\'': case '\\':
+                if( c==quote || c=='\\' ) b.append('\\');
+                b.append(c);
+                break;
+            default:
+                if( c<' ' || c==127 )
+                    b.append('\\').append((char)('0'+(c>>6))).append((char)('0'+((c>>3)&7))).append((char)('0'+(c&7)));
+                else
+                    b.append(c);
+            }
+        }
+        b.append(quote);
+        return b.toString();
+    }
+}
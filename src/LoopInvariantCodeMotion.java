@@ -0,0 +1,269 @@
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+	Hoists loop-invariant operator calls out of while loops.
+
+	A call is invariant in a loop if it is a call of a pure operator,
+	as for CommonSubexpressionEliminator, and its operands are
+	literals, variables that are not stored to anywhere in the loop,
+	or invariant calls themselves.  Each maximal invariant call is
+	computed once into a new slot and replaced by a Fetch of that
+	slot; equal calls share the slot.
+
+	The pure operators have no side effects but may still fail: /
+	and % on zero, and the others on null or on operands of the wrong
+	type.  Moving a call that fails past other calls would change
+	what the program prints before it fails, or how it fails, so a
+	call is only hoisted from where it is always evaluated and no
+	call that stays in the loop is evaluated before it.  The hoisted
+	calls then run in their original order, ahead of everything else
+	that could be observed.  Calls in the condition are computed in a
+	block of stores before the loop.  Calls in the body are computed
+	in the loop's pre-header, which runs only once the condition
+	first holds, and are always evaluated if they are outside if
+	branches other than the first condition, inner loop bodies, right
+	operands of && and ||, and anything after a possible return.
+	Elsewhere in the loop a call is only replaced by the slot of an
+	equal call that was hoisted.
+
+	Inner loops are handled first, so an invariant of the outer loop
+	that was hoisted out of an inner loop moves on out of the outer
+	when it is always evaluated there too.
+ */
+public final class LoopInvariantCodeMotion
+{
+    private final HashSet<String> pure;
+    private int hoisted;
+
+    private CallGraph graph;
+    private int frame;
+
+    /** The slots stored to in the loop being processed. */
+    private BitSet stored;
+    /** The temporary slot of each hoisted call, by key. */
+    private LinkedHashMap<String,Integer> temps;
+    private LinkedHashMap<String,Expr> hoists;
+    /** Whether a call that stays in the loop has been passed. */
+    private boolean called;
+
+    public LoopInvariantCodeMotion( Options options )
+    {
+        pure = new HashSet<String>();
+        for( String op: options.pure ) pure.add(op);
+    }
+
+    public FunctionDef[] hoist( FunctionDef[] funs )
+    {
+        graph = new CallGraph(funs);
+        FunctionDef[] res = new FunctionDef[funs.length];
+        for( int i=0 ; i!=funs.length ; i++ )
+        {
+            FunctionDef f = funs[i];
+            frame = f.argCount+f.varCount;
+            Expr[] body = rewriteBody(f.body);
+            res[i] = new FunctionDef(f.name,f.argCount,frame-f.argCount,body);
+        }
+        return res;
+    }
+
+    /**
+    	Returns the number of calls hoisted so far, counting equal
+    	calls that share a temporary slot once.
+     */
+    public int hoisted()
+    {
+        return hoisted;
+    }
+
+    private Expr[] rewriteBody( Expr[] body )
+    {
+        Expr[] res = new Expr[body.length];
+        for( int i=0 ; i!=body.length ; i++ ) res[i] = rewrite(body[i]);
+        return res;
+    }
+
+    private Expr rewrite( Expr e )
+    {
+        switch( e.kind )
+        {
+        case NanoMorphoParser.RETURN:
+            return new Expr.Return(rewrite(((Expr.Return)e).value));
+        case NanoMorphoParser.STORE:
+            Expr.Store st = (Expr.Store)e;
+            return new Expr.Store(st.slot,rewrite(st.value));
+        case NanoMorphoParser.WHILE:
+            Expr.While w = (Expr.While)e;
+            return hoistLoop(new Expr.While(rewrite(w.cond),rewriteBody(w.pre),rewriteBody(w.body)));
+        case NanoMorphoParser.IF:
+            Expr.If ife = (Expr.If)e;
+            Expr[][] bodies = new Expr[ife.bodies.length][];
+            for( int i=0 ; i!=bodies.length ; i++ ) bodies[i] = rewriteBody(ife.bodies[i]);
+            return new Expr.If(rewriteBody(ife.conds),bodies,rewriteBody(ife.elseBody));
+        case NanoMorphoParser.BLOCK:
+            return new Expr.Block(rewriteBody(((Expr.Block)e).body));
+        case NanoMorphoParser.CALL:
+        case NanoMorphoParser.OPNAME:
+            Expr.Call call = (Expr.Call)e;
+            return new Expr.Call(call.kind,call.name,rewriteBody(call.args));
+        default:
+            return e;
+        }
+    }
+
+    private Expr hoistLoop( Expr.While w )
+    {
+        stored = new BitSet();
+        stores(w);
+        temps = new LinkedHashMap<String,Integer>();
+        hoists = new LinkedHashMap<String,Expr>();
+        called = false;
+        Expr cond = replace(w.cond,true);
+        int before = temps.size();
+        // The pre-header runs after the whole condition
+        called = false;
+        Expr[] body = replaceBody(w.body,true);
+        if( temps.isEmpty() ) return w;
+        Expr[] res = new Expr[before+1];
+        Expr[] pre = Arrays.copyOf(w.pre,w.pre.length+temps.size()-before);
+        int k = 0;
+        for( Map.Entry<String,Integer> t: temps.entrySet() )
+        {
+            Expr st = new Expr.Store(t.getValue(),hoists.get(t.getKey()));
+            if( k<before )
+                res[k] = st;
+            else
+                pre[w.pre.length+k-before] = st;
+            k++;
+        }
+        res[before] = new Expr.While(cond,pre,body);
+        return before==0 ? res[0] : new Expr.Block(res);
+    }
+
+    private void stores( Expr e )
+    {
+        if( e.kind==NanoMorphoParser.STORE ) stored.set(((Expr.Store)e).slot);
+        for( Expr c: Expr.children(e) ) stores(c);
+    }
+
+    /**
+    	Replaces invariant calls in the expressions of body, which are
+    	evaluated in order.  always is true if the first is always
+    	evaluated, and the rest are too unless an earlier one may
+    	return.
+     */
+    private Expr[] replaceBody( Expr[] body, boolean always )
+    {
+        Expr[] res = new Expr[body.length];
+        for( int i=0 ; i!=body.length ; i++ )
+        {
+            res[i] = replace(body[i],always);
+            always = always && !returns(body[i]);
+        }
+        return res;
+    }
+
+    /**
+    	Replaces the maximal invariant calls in e by fetches of their
+    	temporary slots.  always is true if e is always evaluated when
+    	the loop condition is, or when the body is, and only then, and
+    	if no call that stays in the loop came before, is a new
+    	temporary slot made.
+     */
+    private Expr replace( Expr e, boolean always )
+    {
+        if( e.kind==NanoMorphoParser.CALL && invariant(e) )
+        {
+            String key = key(e);
+            Integer temp = temps.get(key);
+            if( temp==null && always && !called )
+            {
+                temp = frame++;
+                temps.put(key,temp);
+                hoists.put(key,e);
+                hoisted++;
+            }
+            if( temp!=null ) return new Expr.Name(temp);
+        }
+        switch( e.kind )
+        {
+        case NanoMorphoParser.RETURN:
+            return new Expr.Return(replace(((Expr.Return)e).value,always));
+        case NanoMorphoParser.STORE:
+            Expr.Store st = (Expr.Store)e;
+            return new Expr.Store(st.slot,replace(st.value,always));
+        case NanoMorphoParser.WHILE:
+            Expr.While w = (Expr.While)e;
+            return new Expr.While(replace(w.cond,always),replaceBody(w.pre,false),replaceBody(w.body,false));
+        case NanoMorphoParser.IF:
+            Expr.If ife = (Expr.If)e;
+            Expr[] conds = new Expr[ife.conds.length];
+            Expr[][] bodies = new Expr[ife.bodies.length][];
+            for( int i=0 ; i!=conds.length ; i++ )
+            {
+                conds[i] = replace(ife.conds[i],always && i==0);
+                bodies[i] = replaceBody(ife.bodies[i],false);
+            }
+            return new Expr.If(conds,bodies,replaceBody(ife.elseBody,false));
+        case NanoMorphoParser.BLOCK:
+            return new Expr.Block(replaceBody(((Expr.Block)e).body,always));
+        case NanoMorphoParser.CALL:
+        case NanoMorphoParser.OPNAME:
+            Expr.Call call = (Expr.Call)e;
+            boolean shortCircuit = call.name.equals("&&") || call.name.equals("||");
+            Expr[] args = new Expr[call.args.length];
+            for( int i=0 ; i!=args.length ; i++ )
+            {
+                args[i] = replace(call.args[i],always && !(shortCircuit && i>0));
+                always = always && !returns(call.args[i]);
+            }
+            // && and || are jumps, not calls
+            if( !shortCircuit ) called = true;
+            return new Expr.Call(call.kind,call.name,args);
+        default:
+            return e;
+        }
+    }
+
+    private static boolean returns( Expr e )
+    {
+        if( e.kind==NanoMorphoParser.RETURN ) return true;
+        for( Expr c: Expr.children(e) )
+            if( returns(c) ) return true;
+        return false;
+    }
+
+    private boolean invariant( Expr e )
+    {
+        switch( e.kind )
+        {
+        case NanoMorphoParser.LITERAL:
+            return true;
+        case NanoMorphoParser.NAME:
+            return !stored.get(((Expr.Name)e).slot);
+        case NanoMorphoParser.CALL:
+            Expr.Call call = (Expr.Call)e;
+            if( call.args.length!=2 || !pure.contains(call.name) || graph.lookup(call)>=0 ) return false;
+            return invariant(call.args[0]) && invariant(call.args[1]);
+        default:
+            return false;
+        }
+    }
+
+    private static String key( Expr e )
+    {
+        switch( e.kind )
+        {
+        case NanoMorphoParser.LITERAL:
+            return "="+((Expr.Literal)e).text;
+        case NanoMorphoParser.NAME:
+            return "#"+((Expr.Name)e).slot;
+        default:
+            Expr.Call call = (Expr.Call)e;
+            return "("+call.name+" "+key(call.args[0])+" "+key(call.args[1])+")";
+        }
+    }
+}
@@ -0,0 +1,900 @@
+import java.io.*;
+import java.lang.invoke.MethodHandle;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+
+/**
+	Reference interpreter for generated Morpho assembly, so that
+	compiled programs can be run and timed without the Morpho VM.
+
+	Usage: java MasmInterpreter [-time] [-alloc] [-nofuse] [flags] file.masm|file.nm
+	       java MasmInterpreter -jvm [-time] [-alloc] [flags] file.nm
+
+	A .nm file is first compiled in memory with the given compiler
+	flags.  With -jvm it is instead compiled to JVM bytecode by
+	BytecodeGenerator and run as Java code.  The program's main is
+	run with write and writeln printing to standard output.  On
+	stderr, -time reports the run time, -alloc the bytes allocated
+	by the run and their rate, and -stats the state of the inline
+	caches after the run.
+
+	A .nm file is run from the Code that CompilationContext generates,
+	so the CMPFALSE and CMPTRUE compare-and-branch instructions of
+	CodeGenerator are executed as such, a call and a conditional jump
+	in one dispatch.  Code loaded from .masm has none.
+
+	Functions are linked at load time: labels become instruction
+	indices, literals become values, and each call site is resolved
+	to a function of the module or else a built-in of the Basis.
+	Names that are neither are reported together before anything
+	runs.  Operator call sites carry a monomorphic inline cache, see
+	operate(), which starts out int or double where the Code has a
+	type hint from TypeInference.
+
+	Unless -nofuse is given, frequent instruction sequences are then
+	fused into superinstructions, each dispatched once: the pushes of
+	null in a prologue become F_NULLS, and an operator call on the
+	accumulator or a slot and a slot or literal, with a following
+	conditional jump or store, becomes F_OPERATOR.  The sequences are
+	those CodeGenerator emits for loop conditions, comparisons and
+	assignments such as i = i+1, with or without the Peephole.
+
+	Values are unboxed.  Each stack slot, and the accumulator, is a
+	tag with a long and an Object: ints, chars and the bits of
+	doubles are kept in the long, true, false and null in the tag
+	alone, and only strings and pairs use the Object.  Numeric code
+	therefore allocates nothing; values are boxed only to call a
+	built-in other than a cached operator.
+
+	Execution follows the Morpho VM.  Values live on one stack; a
+	call with N arguments pushes the first N-1 and leaves the last in
+	the accumulator, the callee's frame starts at its first argument,
+	and Fetch k and Store k address slot k of the frame.  A non-tail
+	call recurses on the Java stack, while CallR replaces the frame
+	of the caller, so tail calls run in constant space.
+ */
+public final class MasmInterpreter
+{
+    /** A linked function. */
+    static final class Function
+    {
+        final String name;
+        final int argCount;
+        final int[] op;
+        final int[] a;
+        final int[] b;
+        /** The value of each MakeVal, as tag, primitive and reference. */
+        final byte[] valueTags;
+        final long[] valuePrims;
+        final Object[] valueRefs;
+        final String[] names;
+        /** The module function called at each call site, if any. */
+        final Function[] callees;
+        /** The built-in called at each other call site. */
+        final Basis.Builtin[] builtins;
+        /** The operator of each built-in call site, or NONE. */
+        final byte[] operators;
+        /** The inline cache state of each operator call site. */
+        final byte[] caches;
+        /** The F_OPERATOR superinstruction at each index, if any. */
+        final Fusion[] fusions;
+
+        Function( Code c )
+        {
+            name = c.name;
+            argCount = c.argCount;
+            int n = c.size();
+            op = new int[n];
+            a = new int[n];
+            b = new int[n];
+            valueTags = new byte[n];
+            valuePrims = new long[n];
+            valueRefs = new Object[n];
+            names = new String[n];
+            callees = new Function[n];
+            builtins = new Basis.Builtin[n];
+            operators = new byte[n];
+            caches = new byte[n];
+            fusions = new Fusion[n];
+            IntIntMap labels = new IntIntMap();
+            for( int i=0 ; i!=n ; i++ )
+                if( c.op(i)==Code.LABEL ) labels.put(c.a(i),i);
+            int target;
+            for( int i=0 ; i!=n ; i++ )
+            {
+                op[i] = c.op(i);
+                a[i] = c.a(i);
+                b[i] = c.b(i);
+                switch( op[i] )
+                {
+                case Code.MAKEVAL:
+                case Code.MAKEVALP:
+                    Object v = Literals.parse(c.constant(c.a(i)));
+                    if( v==Literals.UNKNOWN ) throw new Error("Invalid literal "+c.constant(c.a(i))+" in "+name);
+                    valueTags[i] = tag(v);
+                    valuePrims[i] = prim(v);
+                    valueRefs[i] = ref(v);
+                    break;
+                case Code.CALL:
+                case Code.CALLR:
+                    names[i] = c.constant(c.a(i))+"[f"+c.b(i)+"]";
+                    caches[i] = cache(c.hint(i));
+                    break;
+                case Code.GO:
+                case Code.GOFALSE:
+                case Code.GOTRUE:
+                    target = labels.get(c.a(i));
+                    if( target==IntIntMap.MISSING ) throw new Error("Undefined label _"+c.a(i)+" in "+name);
+                    a[i] = target;
+                    break;
+                case Code.CMPFALSE:
+                case Code.CMPTRUE:
+                    target = labels.get(c.a(i));
+                    if( target==IntIntMap.MISSING ) throw new Error("Undefined label _"+c.a(i)+" in "+name);
+                    a[i] = target;
+                    b[i] = 2;
+                    names[i] = c.constant(c.b(i))+"[f2]";
+                    caches[i] = cache(c.hint(i));
+                    break;
+                }
+            }
+        }
+
+        /**
+        	Resolves each call site to a function of the module or a
+        	built-in, adding the names that are neither to unresolved.
+         */
+        void link( HashMap<String,Function> functions, Set<String> unresolved )
+        {
+            for( int i=0 ; i!=op.length ; i++ )
+            {
+                if( names[i]==null ) continue;
+                callees[i] = functions.get(names[i]);
+                if( callees[i]!=null ) continue;
+                builtins[i] = Basis.lookup(names[i].substring(0,names[i].lastIndexOf('[')),b[i]);
+                if( builtins[i]==null )
+                    unresolved.add(names[i]);
+                else if( b[i]==2 )
+                    operators[i] = operator(builtins[i].name);
+            }
+        }
+
+        /**
+        	Replaces the first instruction of each sequence that a
+        	superinstruction covers by that superinstruction, and
+        	points jumps past labels.  The rest of a sequence stays in
+        	place and is skipped, so instruction indices do not change.
+        	Sequences never span a label, so no jump enters one.
+        	Returns the number of sequences fused.
+         */
+        int fuse()
+        {
+            int count = 0;
+            for( int i=0 ; i!=op.length ; i++ )
+            {
+                if( Code.isJump(op[i]) )
+                    while( op[a[i]]==Code.LABEL ) a[i]++;
+            }
+            for( int i=0 ; i<op.length ; )
+            {
+                int next = fuseNulls(i);
+                if( next<0 ) next = fuseOperator(i);
+                if( next<0 )
+                    i++;
+                else
+                {
+                    count++;
+                    i = next;
+                }
+            }
+            return count;
+        }
+
+        private boolean isNull( int i )
+        {
+            return valueTags[i]==T_NULL;
+        }
+
+        /**
+        	Fuses (MakeVal null) followed by pushes of null, as in a
+        	prologue, into F_NULLS, and returns the index after the
+        	sequence, or returns -1.
+         */
+        private int fuseNulls( int start )
+        {
+            if( op[start]!=Code.MAKEVAL || !isNull(start) ) return -1;
+            int i = start+1;
+            int pushes = 0;
+            for( ;; )
+            {
+                if( i<op.length && op[i]==Code.MAKEVALP && isNull(i) )
+                    i++;
+                else if( i+1<op.length && op[i]==Code.PUSH && op[i+1]==Code.MAKEVAL && isNull(i+1) )
+                    i += 2;
+                else
+                    break;
+                pushes++;
+            }
+            if( pushes==0 ) return -1;
+            op[start] = F_NULLS;
+            a[start] = pushes;
+            b[start] = i;
+            return i;
+        }
+
+        /**
+        	Fuses an operator call on the accumulator or a fetched
+        	slot and a fetched slot or literal, optionally followed by
+        	a conditional jump or a store, or a compare-and-branch on
+        	such operands, into F_OPERATOR, and returns the index after
+        	the sequence, or returns -1.
+         */
+        private int fuseOperator( int start )
+        {
+            Fusion u = new Fusion();
+            int i = start;
+            if( op[i]==Code.FETCH )
+            {
+                u.x = a[i];
+                i++;
+            }
+            // The right operand pushes the left one: FetchP, MakeValP, or Push and Fetch or MakeVal
+            if( i+1<op.length && op[i]==Code.PUSH && (op[i+1]==Code.FETCH || op[i+1]==Code.MAKEVAL) )
+                i++;
+            else if( i>=op.length || (op[i]!=Code.FETCHP && op[i]!=Code.MAKEVALP) )
+                return -1;
+            if( op[i]==Code.FETCH || op[i]==Code.FETCHP )
+                u.y = a[i];
+            else
+                u.constant = i;
+            i++;
+            if( i>=op.length || operators[i]==NONE ) return -1;
+            u.site = i;
+            if( op[i]==Code.CMPFALSE || op[i]==Code.CMPTRUE )
+            {
+                // The call and its jump in one instruction
+                u.then = op[i]==Code.CMPFALSE ? Code.GOFALSE : Code.GOTRUE;
+                u.target = a[i++];
+            }
+            else if( op[i]!=Code.CALL )
+                return -1;
+            else if( ++i<op.length && (op[i]==Code.GOFALSE || op[i]==Code.GOTRUE || op[i]==Code.STORE) )
+            {
+                u.then = op[i];
+                u.target = a[i];
+                i++;
+            }
+            u.next = i;
+            op[start] = F_OPERATOR;
+            fusions[start] = u;
+            return i;
+        }
+    }
+
+    /**
+    	A fused operator call.  The left operand is the accumulator if
+    	x is negative and slot x otherwise, the right operand is slot y
+    	if y is not negative and the MakeVal at constant otherwise.
+    	The operator is that of the call site site.  then is GOFALSE or
+    	GOTRUE to jump to target, STORE to store in slot target, or
+    	NONE.  Execution continues at next.
+     */
+    static final class Fusion
+    {
+        int x = -1;
+        int y = -1;
+        int constant;
+        int site;
+        int then = NONE;
+        int target;
+        int next;
+    }
+
+    /** Superinstruction opcodes, beyond those of Code. */
+    static final int F_NULLS = 100;
+    static final int F_OPERATOR = 101;
+
+    static final byte NONE = 0;
+    static final byte ADD = 1;
+    static final byte SUB = 2;
+    static final byte MUL = 3;
+    static final byte DIV = 4;
+    static final byte MOD = 5;
+    static final byte LT = 6;
+    static final byte LE = 7;
+    static final byte GT = 8;
+    static final byte GE = 9;
+    static final byte EQ = 10;
+    static final byte NE = 11;
+
+    /** Inline cache states: no call yet, ints, doubles, or anything. */
+    static final byte EMPTY = 0;
+    static final byte INTS = 1;
+    static final byte DOUBLES = 2;
+    static final byte GENERIC = 3;
+
+    /**
+    	Returns the initial inline cache state for a call site with
+    	the given type hint.  TypeInference proved the operand types
+    	of a hinted site, so its cache starts out specialized.
+     */
+    static byte cache( int hint )
+    {
+        switch( hint )
+        {
+        case Code.INT: return INTS;
+        case Code.DOUBLE: return DOUBLES;
+        default: return EMPTY;
+        }
+    }
+
+    static byte operator( String name )
+    {
+        switch( name )
+        {
+        case "+": return ADD;
+        case "-": return SUB;
+        case "*": return MUL;
+        case "/": return DIV;
+        case "%": return MOD;
+        case "<": return LT;
+        case "<=": return LE;
+        case ">": return GT;
+        case ">=": return GE;
+        case "==": return EQ;
+        case "!=": return NE;
+        default: return NONE;
+        }
+    }
+
+    /** Value tags; the primitive slot holds ints, chars and double bits. */
+    static final byte T_NULL = 0;
+    static final byte T_FALSE = 1;
+    static final byte T_TRUE = 2;
+    static final byte T_INT = 3;
+    static final byte T_DOUBLE = 4;
+    static final byte T_CHAR = 5;
+    static final byte T_REF = 6;
+
+    static byte tag( Object v )
+    {
+        if( v==null ) return T_NULL;
+        if( v instanceof Integer ) return T_INT;
+        if( v instanceof Double ) return T_DOUBLE;
+        if( v instanceof Boolean ) return (Boolean)v ? T_TRUE : T_FALSE;
+        if( v instanceof Character ) return T_CHAR;
+        return T_REF;
+    }
+
+    static long prim( Object v )
+    {
+        if( v instanceof Integer ) return (Integer)v;
+        if( v instanceof Double ) return Double.doubleToRawLongBits((Double)v);
+        if( v instanceof Character ) return (Character)v;
+        return 0;
+    }
+
+    static Object ref( Object v )
+    {
+        return tag(v)==T_REF ? v : null;
+    }
+
+    static Object box( byte tag, long prim, Object ref )
+    {
+        switch( tag )
+        {
+        case T_NULL: return null;
+        case T_FALSE: return Boolean.FALSE;
+        case T_TRUE: return Boolean.TRUE;
+        case T_INT: return (int)prim;
+        case T_DOUBLE: return Double.longBitsToDouble(prim);
+        case T_CHAR: return (char)prim;
+        default: return ref;
+        }
+    }
+
+    private final HashMap<String,Function> functions = new HashMap<String,Function>();
+    private byte[] tags = new byte[1024];
+    private long[] prims = new long[1024];
+    private Object[] refs = new Object[1024];
+    private int sp;
+    /** The value returned by execute, besides its tag. */
+    private long retPrim;
+    private Object retRef;
+    /** Arguments of a built-in call, boxed. */
+    private final Object[] args = new Object[2];
+
+    private int fused;
+
+    public MasmInterpreter( Code[] code )
+    {
+        this(code,true);
+    }
+
+    /**
+    	Loads and links code, with superinstructions if fuse is true.
+    	Throws an Error naming all unresolved call targets, if there
+    	are any.
+     */
+    public MasmInterpreter( Code[] code, boolean fuse )
+    {
+        for( Code c: code ) functions.put(c.name+"[f"+c.argCount+"]",new Function(c));
+        Set<String> unresolved = new TreeSet<String>();
+        for( Function f: functions.values() ) f.link(functions,unresolved);
+        if( !unresolved.isEmpty() ) throw new Error("Unresolved symbols: "+String.join(", ",unresolved));
+        if( fuse )
+            for( Function f: functions.values() ) fused += f.fuse();
+    }
+
+    /**
+    	Returns the number of operator call sites whose inline cache
+    	is in each state, and the number of fused sequences, as one
+    	line.
+     */
+    public String report()
+    {
+        int[] count = new int[4];
+        for( Function f: functions.values() )
+            for( int i=0 ; i!=f.op.length ; i++ )
+                if( f.operators[i]!=NONE ) count[f.caches[i]]++;
+        return "operator call sites: "+count[INTS]+" int, "+count[DOUBLES]+" double, "
+               +count[GENERIC]+" generic, "+count[EMPTY]+" not called; "+fused+" sequences fused";
+    }
+
+    /**
+    	Runs main and returns its value.
+     */
+    public Object run()
+    {
+        Function main = functions.get("main[f0]");
+        if( main==null ) throw new Error("No main[f0]");
+        sp = 0;
+        byte tag = execute(main,0);
+        return box(tag,retPrim,retRef);
+    }
+
+    private void push( byte tag, long prim, Object ref )
+    {
+        if( sp==tags.length )
+        {
+            tags = Arrays.copyOf(tags,2*sp);
+            prims = Arrays.copyOf(prims,2*sp);
+            refs = Arrays.copyOf(refs,2*sp);
+        }
+        tags[sp] = tag;
+        prims[sp] = prim;
+        refs[sp++] = ref;
+    }
+
+    /**
+    	Executes f with its frame starting at fp.  Returns the tag of
+    	its value and leaves the rest in retPrim and retRef.  FetchP
+    	and MakeValP push and then fall through to Fetch and MakeVal.
+     */
+    @SuppressWarnings("fallthrough")
+    private byte execute( Function f, int fp )
+    {
+        int[] op = f.op;
+        int[] a = f.a;
+        int pc = 0;
+        byte tag = T_NULL;
+        long prim = 0;
+        Object ref = null;
+        for( ;; )
+        {
+            switch( op[pc] )
+            {
+            case Code.FETCHP:
+                push(tag,prim,ref);
+            case Code.FETCH:
+            {
+                int i = fp+a[pc++];
+                tag = tags[i];
+                prim = prims[i];
+                ref = refs[i];
+                break;
+            }
+            case Code.STORE:
+            {
+                int i = fp+a[pc++];
+                tags[i] = tag;
+                prims[i] = prim;
+                refs[i] = ref;
+                break;
+            }
+            case Code.MAKEVALP:
+                push(tag,prim,ref);
+            case Code.MAKEVAL:
+                tag = f.valueTags[pc];
+                prim = f.valuePrims[pc];
+                ref = f.valueRefs[pc++];
+                break;
+            case Code.PUSH:
+                push(tag,prim,ref);
+                pc++;
+                break;
+            case Code.LABEL:
+                pc++;
+                break;
+            case Code.GO:
+                pc = a[pc];
+                break;
+            case Code.GOFALSE:
+                pc = tag>T_FALSE ? pc+1 : a[pc];
+                break;
+            case Code.GOTRUE:
+                pc = tag>T_FALSE ? a[pc] : pc+1;
+                break;
+            case Code.RETURN:
+                sp = fp;
+                retPrim = prim;
+                retRef = ref;
+                return tag;
+            case Code.CALL:
+            {
+                int argc = f.b[pc];
+                if( argc>0 ) push(tag,prim,ref);
+                int base = sp-argc;
+                Function g = f.callees[pc];
+                if( g!=null )
+                    tag = execute(g,base);
+                else
+                    tag = builtin(f,pc,base);
+                prim = retPrim;
+                ref = retRef;
+                sp = base;
+                pc++;
+                break;
+            }
+            case Code.CMPFALSE:
+            case Code.CMPTRUE:
+            {
+                push(tag,prim,ref);
+                int base = sp-2;
+                Function g = f.callees[pc];
+                if( g!=null )
+                    tag = execute(g,base);
+                else
+                    tag = builtin(f,pc,base);
+                prim = retPrim;
+                ref = retRef;
+                sp = base;
+                if( (tag>T_FALSE)==(op[pc]==Code.CMPTRUE) )
+                    pc = a[pc];
+                else
+                    pc++;
+                break;
+            }
+            case Code.CALLR:
+            {
+                int argc = f.b[pc];
+                if( argc>0 ) push(tag,prim,ref);
+                int base = sp-argc;
+                Function g = f.callees[pc];
+                if( g==null )
+                {
+                    tag = builtin(f,pc,base);
+                    sp = fp;
+                    return tag;
+                }
+                System.arraycopy(tags,base,tags,fp,argc);
+                System.arraycopy(prims,base,prims,fp,argc);
+                System.arraycopy(refs,base,refs,fp,argc);
+                sp = fp+argc;
+                f = g;
+                op = f.op;
+                a = f.a;
+                pc = 0;
+                break;
+            }
+            case F_NULLS:
+                for( int k=a[pc] ; k!=0 ; k-- ) push(T_NULL,0,null);
+                tag = T_NULL;
+                prim = 0;
+                ref = null;
+                pc = f.b[pc];
+                break;
+            case F_OPERATOR:
+            {
+                Fusion u = f.fusions[pc];
+                byte xt;
+                long xp;
+                Object xr;
+                if( u.x<0 )
+                {
+                    xt = tag;
+                    xp = prim;
+                    xr = ref;
+                }
+                else
+                {
+                    int i = fp+u.x;
+                    xt = tags[i];
+                    xp = prims[i];
+                    xr = refs[i];
+                }
+                if( u.y>=0 )
+                {
+                    int i = fp+u.y;
+                    tag = operate(f,u.site,xt,xp,xr,tags[i],prims[i],refs[i]);
+                }
+                else
+                {
+                    int i = u.constant;
+                    tag = operate(f,u.site,xt,xp,xr,f.valueTags[i],f.valuePrims[i],f.valueRefs[i]);
+                }
+                prim = retPrim;
+                ref = retRef;
+                switch( u.then )
+                {
+                case Code.GOFALSE:
+                    pc = tag>T_FALSE ? u.next : u.target;
+                    break;
+                case Code.GOTRUE:
+                    pc = tag>T_FALSE ? u.target : u.next;
+                    break;
+                case Code.STORE:
+                {
+                    int i = fp+u.target;
+                    tags[i] = tag;
+                    prims[i] = prim;
+                    refs[i] = ref;
+                    pc = u.next;
+                    break;
+                }
+                default:
+                    pc = u.next;
+                }
+                break;
+            }
+            default:
+                throw new Error("Unknown opcode "+op[pc]+" in "+f.name);
+            }
+        }
+    }
+
+    /**
+    	Calls the built-in of call site pc of f on the arguments at
+    	base, returning the result like execute.
+     */
+    private byte builtin( Function f, int pc, int base )
+    {
+        if( f.operators[pc]!=NONE )
+            return operate(f,pc,tags[base],prims[base],refs[base],tags[base+1],prims[base+1],refs[base+1]);
+        int argc = f.b[pc];
+        for( int i=0 ; i!=argc ; i++ ) args[i] = box(tags[base+i],prims[base+i],refs[base+i]);
+        return apply(f,pc);
+    }
+
+    /**
+    	Calls the operator of call site pc of f on the operands x and
+    	y, returning the result like execute.  The site caches the
+    	operand types of its first call, unless a type hint set them
+    	at load time: while they stay both ints or both doubles, the
+    	operator is computed directly on the primitive slots; on the
+    	first miss the site becomes generic.  Generic calls box their
+    	arguments and call the Basis.
+     */
+    private byte operate( Function f, int pc, byte xt, long xp, Object xr, byte yt, long yp, Object yr )
+    {
+        int operator = f.operators[pc];
+        switch( f.caches[pc] )
+        {
+        case EMPTY:
+            if( xt==T_INT && yt==T_INT )
+            {
+                f.caches[pc] = INTS;
+                return intOperator(operator,(int)xp,(int)yp);
+            }
+            if( xt==T_DOUBLE && yt==T_DOUBLE )
+            {
+                f.caches[pc] = DOUBLES;
+                return doubleOperator(operator,Double.longBitsToDouble(xp),Double.longBitsToDouble(yp));
+            }
+            f.caches[pc] = GENERIC;
+            break;
+        case INTS:
+            if( xt==T_INT && yt==T_INT ) return intOperator(operator,(int)xp,(int)yp);
+            f.caches[pc] = GENERIC;
+            break;
+        case DOUBLES:
+            if( xt==T_DOUBLE && yt==T_DOUBLE ) return doubleOperator(operator,Double.longBitsToDouble(xp),Double.longBitsToDouble(yp));
+            f.caches[pc] = GENERIC;
+            break;
+        }
+        args[0] = box(xt,xp,xr);
+        args[1] = box(yt,yp,yr);
+        return apply(f,pc);
+    }
+
+    /**
+    	Calls the built-in of call site pc of f on the boxed arguments
+    	in args.
+     */
+    private byte apply( Function f, int pc )
+    {
+        Object res = f.builtins[pc].apply(args,0);
+        args[0] = args[1] = null;
+        retPrim = prim(res);
+        retRef = ref(res);
+        return tag(res);
+    }
+
+    private byte intOperator( int operator, int x, int y )
+    {
+        retRef = null;
+        switch( operator )
+        {
+        case ADD: retPrim = x+y; return T_INT;
+        case SUB: retPrim = x-y; return T_INT;
+        case MUL: retPrim = x*y; return T_INT;
+        case DIV:
+            if( y==0 ) throw new Error("Division by zero");
+            retPrim = x/y;
+            return T_INT;
+        case MOD:
+            if( y==0 ) throw new Error("Division by zero");
+            retPrim = x%y;
+            return T_INT;
+        }
+        return truth(compare(operator,Integer.compare(x,y)));
+    }
+
+    /**
+    	Computes a double operator as Basis does: ordered by
+    	Double.compare, equal by ==.
+     */
+    private byte doubleOperator( int operator, double x, double y )
+    {
+        retRef = null;
+        double r;
+        switch( operator )
+        {
+        case ADD: r = x+y; break;
+        case SUB: r = x-y; break;
+        case MUL: r = x*y; break;
+        case DIV: r = x/y; break;
+        case MOD: r = x%y; break;
+        case EQ: return truth(x==y);
+        case NE: return truth(x!=y);
+        default: return truth(compare(operator,Double.compare(x,y)));
+        }
+        retPrim = Double.doubleToRawLongBits(r);
+        return T_DOUBLE;
+    }
+
+    private static boolean compare( int operator, int c )
+    {
+        switch( operator )
+        {
+        case LT: return c<0;
+        case LE: return c<=0;
+        case GT: return c>0;
+        case GE: return c>=0;
+        case EQ: return c==0;
+        default: return c!=0;
+        }
+    }
+
+    private static byte truth( boolean b )
+    {
+        return b ? T_TRUE : T_FALSE;
+    }
+
+    /**
+    	Compiles a NanoMorpho file in memory and returns its Code.
+     */
+    static Code[] compile( String filename, Options options ) throws Exception
+    {
+        return new CompilationContext(filename,null,options).generate();
+    }
+
+    static public void main( String[] args ) throws Exception
+    {
+        Options options = new Options();
+        boolean time = false;
+        boolean alloc = false;
+        boolean fuse = true;
+        boolean jvm = false;
+        int i = 0;
+        for( ; i<args.length && args[i].startsWith("-") ; i++ )
+        {
+            if( args[i].equals("-time") )
+                time = true;
+            else if( args[i].equals("-alloc") )
+                alloc = true;
+            else if( args[i].equals("-nofuse") )
+                fuse = false;
+            else if( args[i].equals("-jvm") )
+                jvm = true;
+            else if( !options.set(args[i]) )
+                break;
+        }
+        if( i!=args.length-1 || (jvm && !args[i].endsWith(".nm")) )
+        {
+            System.err.println("Usage: java MasmInterpreter [-time] [-alloc] [-nofuse] [flags] file.masm|file.nm");
+            System.err.println("       java MasmInterpreter -jvm [-time] [-alloc] [flags] file.nm");
+            System.exit(1);
+        }
+        final String file = args[i];
+        final Callable<Object> program;
+        try
+        {
+            if( jvm )
+            {
+                FunctionDef[] funs = new CompilationContext(file,null,options).optimize();
+                final MethodHandle main = new BytecodeGenerator(options).load(funs);
+                program = ()->
+                {
+                    try
+                    {
+                        return (Object)main.invokeExact();
+                    }
+                    catch( Error|Exception e )
+                    {
+                        throw e;
+                    }
+                    catch( Throwable e )
+                    {
+                        throw new Error(e);
+                    }
+                };
+            }
+            else
+            {
+                final MasmInterpreter interpreter = new MasmInterpreter(file.endsWith(".nm") ? compile(file,options) : MasmLoader.loadFile(file),fuse);
+                final boolean stats = options.stats;
+                program = ()->
+                {
+                    Object res = interpreter.run();
+                    if( stats ) System.err.println(file+": "+interpreter.report());
+                    return res;
+                };
+            }
+        }
+        catch( Throwable e )
+        {
+            System.err.println(e.getMessage());
+            System.exit(1);
+            return;
+        }
+        final PrintStream out = new PrintStream(new BufferedOutputStream(new FileOutputStream(FileDescriptor.out),1<<16),false);
+        Basis.setOutput(out);
+        final boolean timed = time;
+        final boolean allocs = alloc;
+        final com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+        final Throwable[] failure = new Throwable[1];
+        // Deep non-tail recursion needs a large Java stack
+        Thread t = new Thread(null,()->
+        {
+            try
+            {
+                long id = Thread.currentThread().getId();
+                long bytes = threads.getThreadAllocatedBytes(id);
+                long start = System.nanoTime();
+                program.call();
+                double seconds = (System.nanoTime()-start)/1e9;
+                bytes = threads.getThreadAllocatedBytes(id)-bytes;
+                out.flush();
+                if( timed ) System.err.printf("%s: %.1f ms%n",file,seconds*1e3);
+                if( allocs ) System.err.printf("%s: %d bytes allocated, %.1f MB/s%n",file,bytes,bytes/seconds/1e6);
+            }
+            catch( Throwable e )
+            {
+                failure[0] = e;
+            }
+        },"morpho",1L<<30);
+        t.start();
+        t.join();
+        out.flush();
+        if( failure[0]!=null )
+        {
+            System.err.println(failure[0] instanceof StackOverflowError ? "Stack overflow" : failure[0].getMessage());
+            System.exit(1);
+        }
+    }
+}
@@ -0,0 +1,214 @@
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Vector;
+
+/**
+	Reads Morpho assembly text, as written by MasmWriter, back into
+	Code.
+
+	The accepted syntax is
+
+		"name.mexe" = main in ! {{ function... }} * BASIS;
+
+	where each function is #"name[fN]" = [ instruction... ]; and each
+	instruction is a label _n: or one of
+
+		(Fetch k) (FetchP k) (Store k) (MakeVal lit) (MakeValP lit)
+		(Push) (Return) (Go _n) (GoFalse _n) (GoTrue _n)
+		(Call #"name[fN]" N) (CallR #"name[fN]" N)
+
+	A call without the # is read the same way, as a call by name.
+	has varCount 0, since the prologue is read as ordinary
+	instructions.  Syntax errors are thrown as Error.
+ */
+public final class MasmLoader
+{
+    private final String text;
+    private int pos;
+    private String programName;
+
+    public MasmLoader( String text )
+    {
+        this.text = text;
+    }
+
+    public static Code[] loadFile( String filename ) throws IOException
+    {
+        byte[] bytes = Files.readAllBytes(Paths.get(filename));
+        return new MasmLoader(new String(bytes,Charset.defaultCharset())).load();
+    }
+
+    /**
+    	Returns the name of the module, without its .mexe extension,
+    	once load() has read it.
+     */
+    public String programName()
+    {
+        return programName;
+    }
+
+    public Code[] load()
+    {
+        programName = string();
+        if( programName.endsWith(".mexe") ) programName = programName.substring(0,programName.length()-5);
+        expect("=");
+        expect("main");
+        expect("in");
+        expect("!");
+        expect("{{");
+        Vector<Code> res = new Vector<Code>();
+        while( !peek("}}") ) res.add(function());
+        expect("}}");
+        expect("*");
+        expect("BASIS");
+        expect(";");
+        skipSpace();
+        if( pos!=text.length() ) error("end of input");
+        return res.toArray(new Code[res.size()]);
+    }
+
+    private Code function()
+    {
+        expect("#");
+        String name = string();
+        int argc = arity(name);
+        Code c = new Code(name.substring(0,name.lastIndexOf('[')),argc,0);
+        expect("=");
+        expect("[");
+        while( !peek("]") )
+        {
+            if( peek("_") )
+            {
+                c.label(label());
+                expect(":");
+                continue;
+            }
+            expect("(");
+            String op = word();
+            switch( op )
+            {
+            case "Fetch": c.fetch(number()); break;
+            case "FetchP": c.add(Code.FETCHP,number(),0); break;
+            case "Store": c.store(number()); break;
+            case "MakeVal": c.makeVal(literal()); break;
+            case "MakeValP": c.add(Code.MAKEVALP,c.addConstant(literal()),0); break;
+            case "Push": c.push(); break;
+            case "Return": c.ret(); break;
+            case "Go": c.go(label()); break;
+            case "GoFalse": c.goFalse(label()); break;
+            case "GoTrue": c.goTrue(label()); break;
+            case "Call":
+            case "CallR":
+                if( peek("#") ) expect("#");
+                String f = string();
+                int n = number();
+                if( arity(f)!=n ) error("argument count of "+f);
+                f = f.substring(0,f.lastIndexOf('['));
+                if( op.equals("Call") )
+                    c.call(f,n);
+                else
+                    c.callR(f,n);
+                break;
+            default:
+                error("instruction");
+            }
+            expect(")");
+        }
+        expect("]");
+        expect(";");
+        return c;
+    }
+
+    private int arity( String name )
+    {
+        int i = name.lastIndexOf("[f");
+        if( i<0 || !name.endsWith("]") ) error("function name with arity");
+        return Integer.parseInt(name.substring(i+2,name.length()-1));
+    }
+
+    private void skipSpace()
+    {
+        while( pos<text.length() && Character.isWhitespace(text.charAt(pos)) ) pos++;
+    }
+
+    private boolean peek( String s )
+    {
+        skipSpace();
+        return text.startsWith(s,pos);
+    }
+
+    private void expect( String s )
+    {
+        if( !peek(s) ) error("'"+s+"'");
+        pos += s.length();
+    }
+
+    private String word()
+    {
+        skipSpace();
+        int start = pos;
+        while( pos<text.length() && Character.isLetter(text.charAt(pos)) ) pos++;
+        if( start==pos ) error("instruction name");
+        return text.substring(start,pos);
+    }
+
+    private int number()
+    {
+        skipSpace();
+        int start = pos;
+        while( pos<text.length() && Character.isDigit(text.charAt(pos)) ) pos++;
+        if( start==pos ) error("number");
+        return Integer.parseInt(text.substring(start,pos));
+    }
+
+    private int label()
+    {
+        expect("_");
+        return number();
+    }
+
+    /**
+    	Reads a quoted string and returns its contents.  Function and
+    	module names have no escapes.
+     */
+    private String string()
+    {
+        String s = quoted('"');
+        return s.substring(1,s.length()-1);
+    }
+
+    /**
+    	Reads a literal and returns its text.
+     */
+    private String literal()
+    {
+        skipSpace();
+        if( pos<text.length() && (text.charAt(pos)=='"' || text.charAt(pos)=='\'') ) return quoted(text.charAt(pos));
+        int start = pos;
+        while( pos<text.length() && text.charAt(pos)!=')' && !Character.isWhitespace(text.charAt(pos)) ) pos++;
+        if( start==pos ) error("literal");
+        return text.substring(start,pos);
+    }
+
+    private String quoted( char quote )
+    {
+        skipSpace();
+        int start = pos;
+        if( pos>=text.length() || text.charAt(pos)!=quote ) error(quote=='"' ? "string" : "character");
+        for( pos++ ; pos<text.length() && text.charAt(pos)!=quote ; pos++ )
+            if( text.charAt(pos)=='\\' ) pos++;
+        if( pos>=text.length() ) error("closing "+quote);
+        pos++;
+        return text.substring(start,pos);
+    }
+
+    private void error( String what )
+    {
+        int line = 1;
+        for( int i=0 ; i<pos && i<text.length() ; i++ )
+            if( text.charAt(i)=='\n' ) line++;
+        throw new Error("Expected "+what+" in line "+line);
+    }
+}
@@ -0,0 +1,93 @@
+import java.io.IOException;
+
+/**
+	Writes Code in the textual Morpho assembly (.masm) syntax.
+ */
+public final class MasmWriter
+{
+    private final Emitter out;
+
+    public MasmWriter( Emitter out )
+    {
+        this.out = out;
+    }
+
+    /**
+    	Writes a module named programname+".mexe" holding the given
+    	functions, with main as its entry point.
+     */
+    public void writeProgram( String programname, Code[] funs ) throws IOException
+    {
+        out.line("\""+programname+".mexe\" = main in");
+        out.line("!");
+        out.line("{{");
+        for( Code f: funs ) writeFunction(f);
+        out.line("}}");
+        out.line("*");
+        out.line("BASIS;");
+    }
+
+    public void writeFunction( Code f ) throws IOException
+    {
+        out.line("#\""+f.name+"[f"+f.argCount+"]\" =");
+        out.line("[");
+        for( int i=0 ; i!=f.size() ; i++ ) writeInstruction(f,i);
+        out.line("];");
+    }
+
+    void writeInstruction( Code f, int i ) throws IOException
+    {
+        switch( f.op(i) )
+        {
+        case Code.FETCH:
+            out.fetch(f.a(i));
+            return;
+        case Code.STORE:
+            out.store(f.a(i));
+            return;
+        case Code.MAKEVAL:
+            out.makeVal(f.constant(f.a(i)));
+            return;
+        case Code.PUSH:
+            out.push();
+            return;
+        case Code.CALL:
+            out.call(f.constant(f.a(i)),f.b(i));
+            return;
+        case Code.GO:
+            out.go(f.a(i));
+            return;
+        case Code.GOFALSE:
+            out.goFalse(f.a(i));
+            return;
+        case Code.GOTRUE:
+            out.goTrue(f.a(i));
+            return;
+        case Code.CMPFALSE:
+            out.call(f.constant(f.b(i)),2);
+            out.goFalse(f.a(i));
+            return;
+        case Code.CMPTRUE:
+            out.call(f.constant(f.b(i)),2);
+            out.goTrue(f.a(i));
+            return;
+        case Code.RETURN:
+            out.ret();
+            return;
+        case Code.LABEL:
+            out.label(f.a(i));
+            return;
+        case Code.FETCHP:
+            out.fetchP(f.a(i));
+            return;
+        case Code.MAKEVALP:
+            out.makeValP(f.constant(f.a(i)));
+            return;
+        case Code.CALLR:
+            out.callR(f.constant(f.a(i)),f.b(i));
+            return;
+        default:
+            throw new Error("Unknown opcode "+f.op(i));
+        }
+    }
+}
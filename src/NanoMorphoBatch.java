@@ -0,0 +1,137 @@
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.stream.*;
+
+/**
+	Compiles many NanoMorpho files in one JVM.
+
+	Usage:
+		java NanoMorphoBatch [-j workers] [flags] path...
+	where each path is a .nm file, a directory (searched recursively
+	for .nm files) or a glob such as 'src/**.nm'.  Each file x.nm is
+	compiled to x.masm next to it.  A file that fails to compile is
+	reported on stderr and does not stop the rest of the batch; the
+	exit status is the number of failed files, capped at 255.  The
+	flags are those of Options.
+ */
+public class NanoMorphoBatch
+{
+    public static void main( String[] args ) throws Exception
+    {
+        int workers = Runtime.getRuntime().availableProcessors();
+        List<Path> files = new ArrayList<Path>();
+        Options options = new Options();
+        for( int i=0 ; i!=args.length ; i++ )
+        {
+            if( args[i].equals("-j") )
+                workers = Integer.parseInt(args[++i]);
+            else if( !options.set(args[i]) )
+                collect(args[i],files);
+        }
+        if( workers<1 ) workers = 1;
+
+        long start = System.nanoTime();
+        int failed = compileAll(files,workers,options);
+        long ms = (System.nanoTime()-start)/1000000;
+        System.err.println("Compiled "+(files.size()-failed)+" of "+files.size()+" files in "+ms+" ms using "+workers+" workers");
+        System.exit(Math.min(failed,255));
+    }
+
+    /**
+    	Compiles every file in files on a pool of the given size and
+    	returns the number of files that failed.
+     */
+    public static int compileAll( List<Path> files, int workers, Options options ) throws InterruptedException
+    {
+        ExecutorService pool = Executors.newFixedThreadPool(workers);
+        List<Future<String>> results = new ArrayList<Future<String>>();
+        for( final Path f: files )
+        {
+            results.add(pool.submit(() -> compileFile(f,options)));
+        }
+        pool.shutdown();
+        int failed = 0;
+        for( int i=0 ; i!=files.size() ; i++ )
+        {
+            String error;
+            try
+            {
+                error = results.get(i).get();
+            }
+            catch( ExecutionException e )
+            {
+                error = String.valueOf(e.getCause());
+            }
+            if( error!=null )
+            {
+                failed++;
+                System.err.println(files.get(i)+": "+error);
+            }
+        }
+        return failed;
+    }
+
+    /**
+    	Compiles one file to the .masm file next to it.  Returns null
+    	on success, otherwise the error message.  No output file is
+    	left behind for a failed compilation.
+     */
+    public static String compileFile( Path file, Options options )
+    {
+        String name = file.toString();
+        Path target = Paths.get(CompilationContext.stripExtension(name)+".masm");
+        try
+        {
+            try( Emitter out = Emitter.toFile(target) )
+            {
+                new CompilationContext(name,out,options).compile();
+            }
+            return null;
+        }
+        catch( Throwable e )
+        {
+            try
+            {
+                Files.deleteIfExists(target);
+            }
+            catch( IOException ignored )
+            {
+            }
+            return e.getMessage()!=null ? e.getMessage() : e.toString();
+        }
+    }
+
+    static void collect( String arg, List<Path> files ) throws IOException
+    {
+        if( arg.matches(".*[*?\\[{].*") )
+        {
+            int meta = arg.length();
+            for( char c: "*?[{".toCharArray() )
+                if( arg.indexOf(c)>=0 ) meta = Math.min(meta,arg.indexOf(c));
+            int slash = arg.lastIndexOf('/',meta);
+            Path base = Paths.get(slash<0 ? "." : slash==0 ? "/" : arg.substring(0,slash));
+            final PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:"+(slash<0 ? "./"+arg : arg));
+            try( Stream<Path> s = Files.walk(base) )
+            {
+                s.filter(p -> Files.isRegularFile(p) && matcher.matches(p))
+                 .sorted()
+                 .forEach(files::add);
+            }
+        }
+        else if( Files.isDirectory(Paths.get(arg)) )
+        {
+            try( Stream<Path> s = Files.walk(Paths.get(arg)) )
+            {
+                s.filter(p -> Files.isRegularFile(p) && p.toString().endsWith(".nm"))
+                 .sorted()
+                 .forEach(files::add);
+            }
+        }
+        else
+        {
+            files.add(Paths.get(arg));
+        }
+    }
+}
@@ -13,6 +13,9 @@
  */
 
 import java.io.*;
+import java.nio.*;
+import java.nio.charset.Charset;
+import java.nio.file.*;
 
 
 /**
@@ -416,121 +419,30 @@ public class NanoMorphoLexer {
 
   /* user code: */
 
-private static String lexeme1;
-private static String lexeme2;
-private static int token1;
-private static int token2;
-private static NanoMorphoLexer lexer;
-private static int line1, column1, line2, column2;
-
-public static void startLexer( String filename ) throws Exception
-{
-	lexer = new NanoMorphoLexer(new FileReader(filename));
-	token2 = lexer.yylex();
-	line2 = lexer.yyline;
-	column2 = lexer.yycolumn;
-	advance();
-}
-
-public static String advance() throws Exception
-{
-	String res = lexeme1;
-	token1 = token2;
-	lexeme1 = lexeme2;
-	line1 = line2;
-	column1 = column2;
-	if( token2==0 ) return res;
-	token2 = lexer.yylex();
-	line2 = lexer.yyline;
-	column2 = lexer.yycolumn;
-	return res;
-}
-
-public static int getLine()
-{
-	return line1+1;
-}
-
-public static int getColumn()
-{
-	return column1+1;
-}
-
-public static int getToken1()
-{
-	return token1;
-}
-
-public static int getToken2()
-{
-	return token2;
-}
-
-public static String getLexeme()
-{
-	return lexeme1;
-}
-
-public static String getLexeme2(){
-  return lexeme2;
-}
-
-private static void expected( int tok )
-{
-	expected(tokname(tok));
-}
-
-private static void expected( char tok )
-{
-	expected("'"+tok+"'");
-}
-
-public static void expected( String tok )
+/**
+	Reads the whole file and returns its tokens.
+ */
+public static TokenBuffer tokenize( String filename ) throws IOException
 {
-	throw new Error("Expected "+tok+", found '"+lexeme1+"' near line "+(line1+1)+", column "+(column1+1));
+	byte[] bytes = Files.readAllBytes(Paths.get(filename));
+	CharBuffer chars = Charset.defaultCharset().decode(ByteBuffer.wrap(bytes));
+	return tokenize(chars.array(),chars.limit());
 }
 
-private static String tokname( int tok )
+/**
+	Scans the first n characters of src into a TokenBuffer.  No
+	lexeme strings are created; the buffer refers back to src.
+ */
+public static TokenBuffer tokenize( char[] src, int n ) throws IOException
 {
-	if( tok<1000 ) return ""+(char)tok;
-	switch( tok )
+	NanoMorphoLexer lexer = new NanoMorphoLexer(new CharArrayReader(src,0,n));
+	TokenBuffer tokens = new TokenBuffer(src,n);
+	for(;;)
 	{
-	case NanoMorphoParser.IF:
-		return "if";
-	case NanoMorphoParser.ELSE:
-		return "else";
-	case NanoMorphoParser.ELSIF:
-		return "elsif";
-	case NanoMorphoParser.WHILE:
-		return "while";
-	case NanoMorphoParser.VAR:
-		return "var";
-	case NanoMorphoParser.RETURN:
-		return "return";
-	case NanoMorphoParser.NAME:
-		return "name";
-	case NanoMorphoParser.OPNAME:
-		return "operation";
-	case NanoMorphoParser.LITERAL:
-		return "literal";
+		int tok = lexer.yylex();
+		if( tok==0 ) return tokens;
+		tokens.add(tok,lexer.yychar,lexer.yylength(),lexer.yyline,lexer.yycolumn);
 	}
-	throw new Error();
-}
-
-public static String over( int tok ) throws Exception
-{
-	if( token1!=tok ) expected(tok);
-	String res = lexeme1;
-	advance();
-	return res;
-}
-
-public static String over( char tok ) throws Exception
-{
-	if( token1!=(int)tok ) expected(tok);
-	String res = lexeme1;
-	advance();
-	return res;
 }
 
 
@@ -795,6 +707,8 @@ public static String over( char tok ) throws Exception
     while (true) {
       zzMarkedPosL = zzMarkedPos;
 
+      yychar+= zzMarkedPosL-zzStartRead;
+
       boolean zzR = false;
       int zzCh;
       int zzCharCount;
@@ -919,28 +833,23 @@ public static String over( char tok ) throws Exception
       else {
         switch (zzAction < 0 ? zzAction : ZZ_ACTION[zzAction]) {
           case 1:
-            { lexeme2 = yytext();
-	return NanoMorphoParser.ERROR;
+            { return NanoMorphoParser.ERROR;
             }
           case 15: break;
           case 2:
-            { lexeme2 = yytext();
-	return NanoMorphoParser.LITERAL;
+            { return NanoMorphoParser.LITERAL;
             }
           case 16: break;
           case 3:
-            { lexeme2 = yytext();
-	return NanoMorphoParser.NAME;
+            { return NanoMorphoParser.NAME;
             }
           case 17: break;
           case 4:
-            { lexeme2 = yytext();
-	return NanoMorphoParser.OPNAME;
+            { return NanoMorphoParser.OPNAME;
             }
           case 18: break;
           case 5:
-            { lexeme2 = yytext();
-	return yycharat(0);
+            { return yycharat(0);
             }
           case 19: break;
           case 6:
@@ -948,18 +857,15 @@ public static String over( char tok ) throws Exception
             }
           case 20: break;
           case 7:
-            { lexeme2 = yytext();
-	return NanoMorphoParser.IF;
+            { return NanoMorphoParser.IF;
             }
           case 21: break;
           case 8:
-            { lexeme2 = yytext();
-	return NanoMorphoParser.VAR;
+            { return NanoMorphoParser.VAR;
             }
           case 22: break;
           case 9:
-            { lexeme2 = yytext();
-	return NanoMorphoParser.ELSE;
+            { return NanoMorphoParser.ELSE;
             }
           case 23: break;
           case 10:
@@ -970,13 +876,11 @@ public static String over( char tok ) throws Exception
             }
           case 24: break;
           case 11:
-            { lexeme2 = yytext();
-	return NanoMorphoParser.ELSIF;
+            { return NanoMorphoParser.ELSIF;
             }
           case 25: break;
           case 12:
-            { lexeme2 = yytext();
-	return NanoMorphoParser.WHILE;
+            { return NanoMorphoParser.WHILE;
             }
           case 26: break;
           case 13:
@@ -987,8 +891,7 @@ public static String over( char tok ) throws Exception
             }
           case 27: break;
           case 14:
-            { lexeme2 = yytext();
-	return NanoMorphoParser.RETURN;
+            { return NanoMorphoParser.RETURN;
             }
           case 28: break;
           default:
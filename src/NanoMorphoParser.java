@@ -1,5 +1,4 @@
 import java.util.Vector;
-import java.util.HashMap;
 import java.io.*;
 
 public class NanoMorphoParser
@@ -17,85 +16,172 @@ public class NanoMorphoParser
     final static int CALL = 1010;
     final static int STORE = 1011;
     final static int PAREN = 1012;
+    final static int BLOCK = 1013;
 
 
-    static String advance() throws Exception
+    private final TokenBuffer tokens;
+    private final SymbolTable symbols;
+    private int pos;
+
+    public NanoMorphoParser( TokenBuffer tokens, SymbolTable symbols )
+    {
+        this.tokens = tokens;
+        this.symbols = symbols;
+    }
+
+    String advance()
+    {
+        return tokens.lexeme(pos++);
+    }
+
+    void over( int tok )
+    {
+        if( tokens.kind(pos)!=tok ) expected(tok);
+        pos++;
+    }
+
+    void over( char tok )
+    {
+        if( tokens.kind(pos)!=(int)tok ) expected(tok);
+        pos++;
+    }
+
+    /**
+    	Skips over a NAME token and returns the symbol id of the name.
+     */
+    int overName()
+    {
+        if( tokens.kind(pos)!=NAME ) expected(NAME);
+        return symbols.intern(tokens,pos++);
+    }
+
+    String overLexeme( int tok )
     {
-        return NanoMorphoLexer.advance();
+        if( tokens.kind(pos)!=tok ) expected(tok);
+        return tokens.lexeme(pos++);
     }
 
-    static String getLexeme(){
-    	return NanoMorphoLexer.getLexeme();
+    int getToken1()
+    {
+        return tokens.kind(pos);
+    }
+
+    /**
+    	Returns the kind of the token k places ahead of the current one.
+     */
+    int peek( int k )
+    {
+        return tokens.kind(pos+k);
+    }
+
+    int getLine()
+    {
+        return tokens.line(pos)+1;
+    }
+
+    private void expected( int tok )
+    {
+        expected(tokname(tok));
     }
 
-    static String over( int tok ) throws Exception
+    private void expected( char tok )
     {
-        return NanoMorphoLexer.over(tok);
+        expected("'"+tok+"'");
     }
 
-    static String over( char tok ) throws Exception
+    void expected( String tok )
     {
-        return NanoMorphoLexer.over(tok);
+        throw new Error("Expected "+tok+", found '"+tokens.lexeme(pos)+"' near line "+(tokens.line(pos)+1)+", column "+(tokens.column(pos)+1));
     }
 
-    static int getToken1()
+    private static String tokname( int tok )
     {
-        return NanoMorphoLexer.getToken1();
+        if( tok<1000 ) return ""+(char)tok;
+        switch( tok )
+        {
+        case IF:
+            return "if";
+        case ELSE:
+            return "else";
+        case ELSIF:
+            return "elsif";
+        case WHILE:
+            return "while";
+        case VAR:
+            return "var";
+        case RETURN:
+            return "return";
+        case NAME:
+            return "name";
+        case OPNAME:
+            return "operation";
+        case LITERAL:
+            return "literal";
+        }
+        throw new Error();
     }
 
-    private static int varCount;
-	private static HashMap<String,Integer> varTable;
+    private int varCount;
+	private final IntIntMap varTable = new IntIntMap();
 
-	private static void addVar( String name )
+	private void addVar( int name )
 	{
-		if( varTable.get(name) != null )
-			throw new Error("Variable "+name+" already exists, near line "+NanoMorphoLexer.getLine());
+		if( varTable.get(name) != IntIntMap.MISSING )
+			throw new Error("Variable "+symbols.name(name)+" already exists, near line "+getLine());
 		varTable.put(name,varCount++);
 	}
 
-	private static int findVar( String name )
+	private int findVar( int name )
 	{
-		Integer res = varTable.get(name);
-		if( res == null )
-			throw new Error("Variable "+name+" does not exist, near line "+NanoMorphoLexer.getLine());
+		int res = varTable.get(name);
+		if( res == IntIntMap.MISSING )
+			throw new Error("Variable "+symbols.name(name)+" does not exist, near line "+getLine());
 		return res;
 	}
 
     static public void main( String[] args ) throws Exception
     {
-    	Object[] code = null;
         try
         {
-            NanoMorphoLexer.startLexer(args[0]);
-            code = program();
+            Options options = new Options();
+            int i = 0;
+            while( i<args.length && options.set(args[i]) ) i++;
+            Emitter out = args.length>i+1 ? Emitter.toFile(java.nio.file.Paths.get(args[i+1])) : Emitter.toStream(System.out);
+            try
+            {
+                new CompilationContext(args[i],out,options).compile();
+            }
+            finally
+            {
+                out.close();
+            }
         }
         catch( Throwable e )
         {
             System.out.println(e.getMessage());
         }
-        generateProgram(args[0],code);
     }
 
-    static Object[] program() throws Exception
+    FunctionDef[] program() throws Exception
     {
-    	Vector<Object> res = new Vector<>();
+    	Vector<FunctionDef> res = new Vector<>();
     	while( getToken1()!=0 ) res.add(function());
-        return res.toArray();
+        return res.toArray(new FunctionDef[res.size()]);
     }
 
-    static Object[] function() throws Exception
+    FunctionDef function() throws Exception
     {
     	varCount = 0;
-    	varTable = new HashMap<String,Integer>();
+    	varTable.clear();
 
-        String fname = over(NAME);
+        String fname = symbols.name(overName());
 
         over('(');
         if( getToken1()!=')' )
         {
             for(;;)
             {
-            	  addVar(over(NAME));
+            	  addVar(overName());
                 if( getToken1()!=',' ) break;
                 over(',');
             }
@@ -108,7 +194,7 @@ public class NanoMorphoParser
             over(';');
         }
 
-		    Vector<Object> res = new Vector<Object>();
+		    Vector<Expr> res = new Vector<Expr>();
 
         while( getToken1()!='}' )
         {
@@ -117,32 +203,32 @@ public class NanoMorphoParser
         }
         over('}');
 
-        return new Object[]{fname, argCount, varCount-argCount, res.toArray()};
+        return new FunctionDef(fname, argCount, varCount-argCount, res.toArray(new Expr[res.size()]));
     }
 
-    static void decl() throws Exception
+    void decl() throws Exception
     {
     	over(VAR);
         for(;;)
         {
-            addVar(over(NAME));
+            addVar(overName());
             if( getToken1()!=',' ) break;
             over(',');
         }
     }
 
-    static Object[] expr() throws Exception
+    Expr expr() throws Exception
     {
         if( getToken1()==RETURN )
         {
             over(RETURN);
-            return new Object[]{"RETURN", expr()};
+            return new Expr.Return(expr());
         }
-        else if( getToken1()==NAME && NanoMorphoLexer.getToken2()=='=' )
+        else if( getToken1()==NAME && peek(1)=='=' )
         {
-            int variable = findVar(over(NAME));
+            int variable = findVar(overName());
             over('=');
-            return new Object[]{"STORE", variable, expr()};
+            return new Expr.Store(variable, expr());
         }
         else
         {
@@ -150,42 +236,41 @@ public class NanoMorphoParser
         }
     }
 
-    static Object[] binopexpr(int pri) throws Exception
+    Expr binopexpr(int pri) throws Exception
     {
         if( pri>7 ){
             return smallexpr();
         }
         else if( pri==2 )
         {
-            Object[] e = binopexpr(3);
-            if( getToken1()==OPNAME && priority(NanoMorphoLexer.getLexeme())==2 )
+            Expr e = binopexpr(3);
+            if( getToken1()==OPNAME && priority(tokens.charAt(pos,0))==2 )
             {
                 String op = advance();
-                e = new Object[]{"CALL",op,new Object[]{e,binopexpr(2)}};
+                e = new Expr.Call(op,new Expr[]{e,binopexpr(2)});
             }
             return e;
         }
         else
         {
-            Object[] e = binopexpr(pri+1);
+            Expr e = binopexpr(pri+1);
 
-            while( getToken1()==OPNAME && priority(NanoMorphoLexer.getLexeme())==pri )
+            while( getToken1()==OPNAME && priority(tokens.charAt(pos,0))==pri )
             {
                 String op = advance();
-                e = new Object[]{"CALL",op,new Object[]{e,binopexpr(pri+1)}};
+                e = new Expr.Call(op,new Expr[]{e,binopexpr(pri+1)});
             }
             return e;
         }
     }
 
-    static Object[] smallexpr() throws Exception
+    Expr smallexpr() throws Exception
     {
-        Object[] res;
-        Vector<Object> resu = new Vector<Object>();
+        Vector<Expr> resu = new Vector<Expr>();
         switch( getToken1() )
         {
         case NAME:
-            String name = over(NAME);
+            int name = overName();
             if( getToken1()=='(' )
             {
                 over('(');
@@ -199,56 +284,53 @@ public class NanoMorphoParser
                     }
                 }
                 over(')');
-                return new Object[]{"CALL", name, resu.toArray()};
+                return new Expr.Call(symbols.name(name), resu.toArray(new Expr[resu.size()]));
             }
-            return new Object[]{"NAME", findVar(name)};
+            return new Expr.Name(findVar(name));
         case WHILE:
-            Object condition, whileExpr;
+            Expr condition;
+            Expr[] whileExpr;
             over(WHILE);
             condition = expr();
             whileExpr = body();
-            return new Object[]{"WHILE",condition,whileExpr};
+            return new Expr.While(condition,whileExpr);
         case IF:
             over(IF);
-            Object[] a = expr();
-            Object[] b = body();
-            Vector<Object> elsif = new Vector<Object>();
+            Vector<Expr[]> bodies = new Vector<Expr[]>();
+            resu.add(expr());
+            bodies.add(body());
             while( getToken1()==ELSIF )
             {
                 over(ELSIF);
-                elsif.add("ELSIF");
-                elsif.add(expr());
-                elsif.add(body());
+                resu.add(expr());
+                bodies.add(body());
             }
-            Object[] c = null;
+            Expr[] c = new Expr[0];
             if( getToken1()==ELSE )
             {
                 over(ELSE);
                 c = body();
             }
-            return new Object[]{"IF", a, b, "ELSE", c, elsif.toArray()};
+            return new Expr.If(resu.toArray(new Expr[resu.size()]), bodies.toArray(new Expr[bodies.size()][]), c);
         case LITERAL:
-            res = new Object[]{"LITERAL", getLexeme()};
-            over(LITERAL);
-            return res;
+            return new Expr.Literal(overLexeme(LITERAL));
         case OPNAME:
-            String opname = getLexeme();
-            over(OPNAME);
-            return new Object[]{"OPNAME", opname, smallexpr()} ;
+            String opname = overLexeme(OPNAME);
+            return new Expr.Call(OPNAME, opname, new Expr[]{smallexpr()});
         case '(':
             over('(');
-            Object[] e = expr();
+            Expr e = expr();
             over(')');
             return e;
         default:
-            NanoMorphoLexer.expected("expression");
+            expected("expression");
         }
         return null;
     }
 
-    static Object[] body() throws Exception
+    Expr[] body() throws Exception
     {
-    	Vector<Object> res = new Vector<Object>();
+    	Vector<Expr> res = new Vector<Expr>();
 
         over('{');
         while( getToken1()!='}' )
@@ -258,12 +340,12 @@ public class NanoMorphoParser
         }
         over('}');
 
-        return res.toArray();
+        return res.toArray(new Expr[res.size()]);
     }
 
-    static int priority( String opname )
+    int priority( char opchar )
     {
-        switch( opname.charAt(0) )
+        switch( opchar )
         {
         case '^':
         case '?':
@@ -288,124 +370,7 @@ public class NanoMorphoParser
         case '%':
             return 7;
         default:
-            throw new Error("Invalid opname at "+NanoMorphoLexer.getLine()+" Column: "+NanoMorphoLexer.getToken2()+"");
-        }
-    }
-
-    static void generateProgram( String filename, Object[] funs )
-    {
-        String programname = filename.substring(0,filename.indexOf('.'));
-        System.out.println("\""+programname+".mexe\" = main in");
-        System.out.println("!");
-        System.out.println("{{");
-        for( Object f: funs )
-        {
-            generateFunction((Object[])f);
-        }
-        System.out.println("}}");
-        System.out.println("*");
-        System.out.println("BASIS;");
-    }
-
-    static void generateFunction( Object[] fun )
-    {
-            //fun = {fname, argcount, varcount, res.toArray()};
-            String fname = (String)fun[0];
-
-            int argCount = (int)fun[1];
-            int varCount = (int)fun[2];
-            System.out.println("#\""+fname+"[f"+argCount+"]\" =");
-
-            System.out.println("[");
-
-            for(int k = 0; k<varCount;k++){
-                System.out.println("(MakeVal null)");
-                System.out.println("(Push)");
-            }
-
-            for(Object e:(Object[])fun[3]){
-                generateExpr((Object[])e);
-            }
-            System.out.println("(Return)");
-            System.out.println("];");
-    }
-
-    static int nextLab = 0;
-
-    static void generateExpr( Object[] e )
-    {
-        switch((String)e[0]){
-            case "NAME":
-                System.out.println("(Fetch "+e[1]+")");
-                return;
-            case "LITERAL":
-                System.out.println("(MakeVal "+(String)e[1]+")");
-                return;
-            case "RETURN":
-                generateExpr((Object[])e[1]);
-                System.out.println("(Return)");
-                return;
-            case "OPNAME":
-                generateExpr((Object[])e[2]);
-                System.out.println("(Call \""+e[1]+"[f1]\" "+1+")");
-                return;
-            case "IF":
-                //e = {res, elsif, els}
-                Object[] argu = (Object[])e[5];
-                int labElse = nextLab++;
-                int labEnd = nextLab++;
-                generateExpr((Object[])e[1]);
-                System.out.println("(GoFalse _"+labElse+")");
-                generateBody((Object[])e[2]);
-                System.out.println("(Go _"+labEnd+")");
-                for(int i = 0; i<argu.length;i+=3){
-                  System.out.println("_"+labElse+":");
-                  generateExpr((Object[])argu[i+1]);
-                  System.out.println("(GoFalse _"+labElse+")");
-                  generateBody((Object[])argu[i+2]);
-                  System.out.println("(Go _"+labEnd+")");
-                }
-                System.out.println("_"+labElse+":");
-                generateBody((Object[])e[4]);
-                System.out.println("_"+labEnd+":");
-                return;
-            case "WHILE":
-                int labStart = nextLab++;
-                int labQuit = nextLab++;
-                System.out.println("_"+labStart+":");
-                generateExpr((Object[])e[1]);
-                System.out.println("(GoFalse _"+labQuit+")");
-                generateBody((Object[])e[2]);
-                System.out.println("(Go _"+labStart+")");
-                System.out.println("_"+labQuit+":");
-                return;
-            case "CALL":
-                //e = {"CALL", name, args[expr,...,expr]}
-                Object[] args = (Object[])e[2];
-                if( args.length!=0){
-                  generateExpr((Object[])args[0]);
-                }
-                for (int i = 1; i!=args.length; i++){
-                  System.out.println("(Push)");
-                  generateExpr((Object[])args[i]);
-                }
-                System.out.println("(Call #\""+e[1]+"[f"+args.length+"]\" "+args.length+")");
-                return;
-            case "STORE":
-                generateExpr((Object[])e[2]);
-                System.out.println("(Store "+e[1]+")");
-                return;
-            case "PAREN":
-                generateExpr((Object[])e[1]);
-                return;
-
-        }
-    }
-
-    static void generateBody( Object[] bod )
-    {
-		    for(int i=0; i<bod.length; i++) {
-			       generateExpr((Object[])bod[i]);
+            throw new Error("Invalid opname at "+getLine()+" Column: "+(tokens.column(pos)+1));
         }
     }
 }
@@ -0,0 +1,141 @@
+/**
+	Compiler settings, shared by NanoMorphoParser and NanoMorphoBatch.
+
+	Flags:
+		-peephole, -nopeephole   run the peephole optimizer (default on)
+		-tailcalls, -notailcalls emit tail calls as CallR (default on)
+		-fold, -nofold           fold operators on literal operands (default on)
+		-rotate, -norotate       test while conditions at the bottom (default on)
+		-switch, -noswitch       compile if/elsif chains on one int variable as
+		                         a binary decision tree (default on, needs
+		                         -types)
+		-slots, -noslots         share local slots by liveness (default on)
+		-inline, -noinline       inline small non-recursive functions (default on)
+		-inline=N                inline functions of at most N nodes (default 16)
+		-dce, -nodce             leave out functions unreachable from main
+		                         (default on)
+		-keep=f,g,...            also keep f, g, ... and what they call
+		-cse, -nocse             reuse repeated pure operator calls (default on)
+		-licm, -nolicm           hoist invariant pure operator calls out of
+		                         while loops (default on)
+		-pure=op,op,...          the operators treated as pure by -cse and -licm
+		                         (default + - * / % < <= > >= == !=)
+		-types, -notypes         infer operand types of operator calls (default on)
+		-stats                   report optimizer statistics on stderr
+ */
+public final class Options
+{
+    public boolean peephole = true;
+    public boolean tailcalls = true;
+    public boolean fold = true;
+    public boolean rotate = true;
+    public boolean slots = true;
+    public boolean switches = true;
+    public boolean inline = true;
+    public int inlineBudget = 16;
+    public boolean dce = true;
+    public String[] keep = new String[0];
+    public boolean licm = true;
+    public boolean cse = true;
+    public String[] pure = {"+","-","*","/","%","<","<=",">",">=","==","!="};
+    public boolean types = true;
+    public boolean stats = false;
+
+    /**
+    	Applies the flag arg and returns true, or returns false if arg
+    	is not a compiler flag.
+     */
+    public boolean set( String arg )
+    {
+        switch( arg )
+        {
+        case "-peephole":
+            peephole = true;
+            return true;
+        case "-nopeephole":
+            peephole = false;
+            return true;
+        case "-tailcalls":
+            tailcalls = true;
+            return true;
+        case "-notailcalls":
+            tailcalls = false;
+            return true;
+        case "-fold":
+            fold = true;
+            return true;
+        case "-nofold":
+            fold = false;
+            return true;
+        case "-rotate":
+            rotate = true;
+            return true;
+        case "-norotate":
+            rotate = false;
+            return true;
+        case "-switch":
+            switches = true;
+            return true;
+        case "-noswitch":
+            switches = false;
+            return true;
+        case "-slots":
+            slots = true;
+            return true;
+        case "-noslots":
+            slots = false;
+            return true;
+        case "-inline":
+            inline = true;
+            return true;
+        case "-noinline":
+            inline = false;
+            return true;
+        case "-dce":
+            dce = true;
+            return true;
+        case "-nodce":
+            dce = false;
+            return true;
+        case "-licm":
+            licm = true;
+            return true;
+        case "-nolicm":
+            licm = false;
+            return true;
+        case "-cse":
+            cse = true;
+            return true;
+        case "-nocse":
+            cse = false;
+            return true;
+        case "-types":
+            types = true;
+            return true;
+        case "-notypes":
+            types = false;
+            return true;
+        case "-stats":
+            stats = true;
+            return true;
+        default:
+            if( arg.startsWith("-inline=") )
+            {
+                inline = true;
+                inlineBudget = Integer.parseInt(arg.substring(8));
+                return true;
+            }
+            if( arg.startsWith("-keep=") )
+            {
+                keep = arg.substring(6).split(",");
+                return true;
+            }
+            if( arg.startsWith("-pure=") )
+            {
+                pure = arg.substring(6).split(",");
+                return true;
+            }
+            return false;
+        }
+    }
+}
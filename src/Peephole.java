@@ -0,0 +1,199 @@
+/**
+	Peephole optimizer for Code.
+
+	Each rule looks at an instruction and the next one that has not
+	been deleted, and may rewrite or delete them.  Passes over the
+	function repeat until no rule applies.  Each rule counts the
+	instructions it removed, over all functions given to the same
+	Peephole.
+ */
+public final class Peephole
+{
+    abstract static class Rule
+    {
+        final String name;
+        int removed;
+
+        Rule( String name )
+        {
+            this.name = name;
+        }
+
+        /**
+        	Tries the rule on instruction i, where j is the index of the
+        	next live instruction or -1.  Returns true if it changed c.
+         */
+        abstract boolean apply( Code c, int i, int j );
+    }
+
+    /** Reference counts of the labels in the current function. */
+    private final IntIntMap refs = new IntIntMap();
+    private final boolean tailcalls;
+
+    public Peephole( Options options )
+    {
+        this.tailcalls = options.tailcalls;
+    }
+
+    private final Rule[] rules =
+    {
+        new Rule("unreachable")
+        {
+            boolean apply( Code c, int i, int j )
+            {
+                if( j<0 || !Code.isTerminator(c.op(i)) || c.op(j)==Code.LABEL ) return false;
+                delete(c,j);
+                return true;
+            }
+        },
+        new Rule("jump to next")
+        {
+            boolean apply( Code c, int i, int j )
+            {
+                if( !Code.isJump(c.op(i)) ) return false;
+                for( int k=j ; k>=0 && c.op(k)==Code.LABEL ; k=next(c,k) )
+                {
+                    if( c.a(k)==c.a(i) )
+                    {
+                        int cmp = c.b(i);
+                        boolean compare = c.op(i)==Code.CMPFALSE || c.op(i)==Code.CMPTRUE;
+                        delete(c,i);
+                        // The comparison still pops its pushed operand
+                        if( compare ) c.set(i,Code.CALL,cmp,2);
+                        return true;
+                    }
+                }
+                return false;
+            }
+        },
+        new Rule("unused label")
+        {
+            boolean apply( Code c, int i, int j )
+            {
+                if( c.op(i)!=Code.LABEL || refs.get(c.a(i))>0 ) return false;
+                delete(c,i);
+                return true;
+            }
+        },
+        new Rule("fetch after store")
+        {
+            boolean apply( Code c, int i, int j )
+            {
+                if( j<0 || c.op(i)!=Code.STORE || c.op(j)!=Code.FETCH || c.a(i)!=c.a(j) ) return false;
+                delete(c,j);
+                return true;
+            }
+        },
+        new Rule("store before return")
+        {
+            boolean apply( Code c, int i, int j )
+            {
+                if( j<0 || c.op(i)!=Code.STORE || c.op(j)!=Code.RETURN ) return false;
+                delete(c,i);
+                return true;
+            }
+        },
+        new Rule("dead load")
+        {
+            boolean apply( Code c, int i, int j )
+            {
+                if( j<0 || !isLoad(c.op(i)) || !isLoad(c.op(j)) ) return false;
+                delete(c,i);
+                return true;
+            }
+        },
+        new Rule("tail call")
+        {
+            boolean apply( Code c, int i, int j )
+            {
+                if( !tailcalls || j<0 || c.op(j)!=Code.RETURN ) return false;
+                if( c.op(i)!=Code.CALL ) return false;
+                c.set(i,Code.CALLR,c.a(i),c.b(i));
+                delete(c,j);
+                return true;
+            }
+        },
+        new Rule("push fusion")
+        {
+            boolean apply( Code c, int i, int j )
+            {
+                if( j<0 || c.op(i)!=Code.PUSH ) return false;
+                if( c.op(j)==Code.FETCH )
+                    c.set(j,Code.FETCHP,c.a(j),0);
+                else if( c.op(j)==Code.MAKEVAL )
+                    c.set(j,Code.MAKEVALP,c.a(j),0);
+                else
+                    return false;
+                delete(c,i);
+                return true;
+            }
+        },
+    };
+
+    private static boolean isLoad( int op )
+    {
+        return op==Code.FETCH || op==Code.MAKEVAL;
+    }
+
+    private static int next( Code c, int i )
+    {
+        for( i++ ; i<c.size() ; i++ )
+            if( c.op(i)!=Code.NOP ) return i;
+        return -1;
+    }
+
+    private void delete( Code c, int i )
+    {
+        if( Code.isJump(c.op(i)) ) refs.put(c.a(i),refs.get(c.a(i))-1);
+        c.set(i,Code.NOP,0,0);
+    }
+
+    public void optimize( Code c )
+    {
+        refs.clear();
+        for( int i=0 ; i!=c.size() ; i++ )
+        {
+            if( c.op(i)==Code.LABEL && refs.get(c.a(i))==IntIntMap.MISSING ) refs.put(c.a(i),0);
+            if( Code.isJump(c.op(i)) )
+            {
+                int n = refs.get(c.a(i));
+                refs.put(c.a(i),n==IntIntMap.MISSING ? 1 : n+1);
+            }
+        }
+        boolean changed = true;
+        while( changed )
+        {
+            changed = false;
+            for( int i=0 ; i!=c.size() ; i++ )
+            {
+                if( c.op(i)==Code.NOP ) continue;
+                int j = next(c,i);
+                for( Rule r: rules )
+                {
+                    if( r.apply(c,i,j) )
+                    {
+                        r.removed++;
+                        changed = true;
+                        break;
+                    }
+                }
+            }
+            c.compact();
+        }
+    }
+
+    /**
+    	Returns the number of instructions removed by each rule so far,
+    	as "rule n, rule n, ...".
+     */
+    public String report()
+    {
+        StringBuilder b = new StringBuilder();
+        for( Rule r: rules )
+        {
+            if( b.length()>0 ) b.append(", ");
+            b.append(r.name).append(' ').append(r.removed);
+        }
+        return b.toString();
+    }
+}
@@ -0,0 +1,168 @@
+import java.util.BitSet;
+
+/**
+	Reassigns the frame slots of local variables by liveness, so that
+	variables whose lifetimes do not overlap share a slot.
+
+	Liveness is computed backwards over the control flow graph of the
+	Code, after the prologue.  A Store to a slot that is not live
+	afterwards is deleted; since Store leaves the accumulator as it
+	is, this does not change the value of the expression.  Two slots
+	interfere if one is stored to while the other is live, and all
+	slots that are live on entry interfere with each other.  Locals
+	are then colored greedily with the lowest slot not taken by an
+	interfering slot.  Argument slots keep their numbers, but a local
+	may take over the slot of an argument that is dead when the local
+	is stored to, unless the local is read before it is stored, in
+	which case it needs the null from the prologue.  Locals that are
+	never read get no slot at all, and the prologue is shrunk to the
+	new number of locals.  If none remain, its first MakeVal null is
+	kept, since the body may return the accumulator before writing
+	it, and the accumulator would otherwise hold the last argument.
+
+	Must run before the Peephole, which fuses the prologue.
+ */
+public final class SlotAllocator
+{
+    private final StringBuilder report = new StringBuilder();
+    private int deadStores;
+
+    public void allocate( Code c )
+    {
+        int nslots = c.argCount+c.varCount;
+        int start = 2*c.varCount;
+        int n = c.size();
+        for( int i=0 ; i!=start ; i++ )
+        {
+            int op = c.op(i);
+            if( op!=(i%2==0 ? Code.MAKEVAL : Code.PUSH) ) throw new Error("Unexpected prologue in "+c.name);
+        }
+
+        BitSet[] liveOut = liveness(c,start,nslots);
+        BitSet liveIn = new BitSet(nslots);
+        if( start<n ) liveIn = liveBefore(c,start,liveOut[start]);
+
+        BitSet[] interferes = new BitSet[nslots];
+        for( int s=0 ; s!=nslots ; s++ ) interferes[s] = new BitSet(nslots);
+        boolean[] used = new boolean[nslots];
+        for( int s=0 ; s!=c.argCount ; s++ ) used[s] = true;
+        for( int s=liveIn.nextSetBit(0) ; s>=0 ; s=liveIn.nextSetBit(s+1) )
+        {
+            interferes[s].or(liveIn);
+            interferes[s].clear(s);
+        }
+        for( int i=start ; i!=n ; i++ )
+        {
+            int op = c.op(i);
+            if( op==Code.FETCH || op==Code.FETCHP )
+                used[c.a(i)] = true;
+            else if( op==Code.STORE )
+            {
+                int s = c.a(i);
+                if( !liveOut[i].get(s) )
+                {
+                    c.set(i,Code.NOP,0,0);
+                    deadStores++;
+                    continue;
+                }
+                BitSet live = liveOut[i];
+                for( int t=live.nextSetBit(0) ; t>=0 ; t=live.nextSetBit(t+1) )
+                {
+                    if( t==s ) continue;
+                    interferes[s].set(t);
+                    interferes[t].set(s);
+                }
+            }
+        }
+
+        int[] slot = new int[nslots];
+        for( int s=0 ; s!=c.argCount ; s++ ) slot[s] = s;
+        int newVarCount = 0;
+        BitSet taken = new BitSet();
+        for( int s=c.argCount ; s!=nslots ; s++ )
+        {
+            if( !used[s] )
+            {
+                slot[s] = -1;
+                continue;
+            }
+            taken.clear();
+            BitSet nb = interferes[s];
+            for( int t=nb.nextSetBit(0) ; t>=0 && t<s ; t=nb.nextSetBit(t+1) )
+                if( slot[t]>=0 ) taken.set(slot[t]);
+            int k = liveIn.get(s) ? taken.nextClearBit(c.argCount) : taken.nextClearBit(0);
+            slot[s] = k;
+            newVarCount = Math.max(newVarCount,k+1-c.argCount);
+        }
+
+        for( int i=start ; i!=n ; i++ )
+        {
+            int op = c.op(i);
+            if( op==Code.FETCH || op==Code.FETCHP || op==Code.STORE ) c.set(i,op,slot[c.a(i)],c.b(i));
+        }
+        int keep = newVarCount==0 && start>0 ? 1 : 2*newVarCount;
+        for( int i=keep ; i!=start ; i++ ) c.set(i,Code.NOP,0,0);
+        c.compact();
+        report.append(c.name).append('[').append(c.argCount).append("] frame ")
+              .append(nslots).append(" -> ").append(c.argCount+newVarCount).append('\n');
+        c.varCount = newVarCount;
+    }
+
+    /**
+    	Returns, for each instruction from start on, the set of slots
+    	that are live right after it.
+     */
+    private static BitSet[] liveness( Code c, int start, int nslots )
+    {
+        int n = c.size();
+        BitSet[] liveOut = new BitSet[n];
+        BitSet[] liveIn = new BitSet[n];
+        for( int i=start ; i!=n ; i++ )
+        {
+            liveOut[i] = new BitSet(nslots);
+            liveIn[i] = new BitSet(nslots);
+        }
+        IntIntMap labels = new IntIntMap();
+        for( int i=start ; i!=n ; i++ )
+            if( c.op(i)==Code.LABEL ) labels.put(c.a(i),i);
+        boolean changed = true;
+        while( changed )
+        {
+            changed = false;
+            for( int i=n-1 ; i>=start ; i-- )
+            {
+                int op = c.op(i);
+                BitSet out = liveOut[i];
+                if( !Code.isTerminator(op) && i+1<n ) out.or(liveIn[i+1]);
+                if( Code.isJump(op) ) out.or(liveIn[labels.get(c.a(i))]);
+                BitSet in = liveBefore(c,i,out);
+                if( !in.equals(liveIn[i]) )
+                {
+                    liveIn[i] = in;
+                    changed = true;
+                }
+            }
+        }
+        return liveOut;
+    }
+
+    private static BitSet liveBefore( Code c, int i, BitSet out )
+    {
+        BitSet in = (BitSet)out.clone();
+        int op = c.op(i);
+        if( op==Code.STORE )
+            in.clear(c.a(i));
+        else if( op==Code.FETCH || op==Code.FETCHP )
+            in.set(c.a(i));
+        return in;
+    }
+
+    /**
+    	Returns the frame sizes before and after allocation, one line
+    	per function, followed by the number of dead stores deleted.
+     */
+    public String report()
+    {
+        return report+"dead stores "+deadStores;
+    }
+}
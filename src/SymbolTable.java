@@ -0,0 +1,85 @@
+import java.util.Arrays;
+
+/**
+	Interns names to small int ids, for one compilation.
+
+	Names are looked up straight from a TokenBuffer, so a name costs a
+	String allocation only the first time it is seen.
+ */
+public final class SymbolTable
+{
+    private int[] table = new int[256];
+    private String[] names = new String[128];
+    private int[] hashes = new int[128];
+    private int count;
+
+    /**
+    	Returns the id of the lexeme of token i of tokens.
+     */
+    public int intern( TokenBuffer tokens, int i )
+    {
+        int h = tokens.hash(i);
+        int mask = table.length-1;
+        for( int p=h&mask ; ; p=(p+1)&mask )
+        {
+            int id = table[p]-1;
+            if( id<0 )
+            {
+                String name = tokens.lexeme(i);
+                return add(name,h,p);
+            }
+            if( hashes[id]==h && tokens.lexemeEquals(i,names[id]) ) return id;
+        }
+    }
+
+    /**
+    	Returns the id of name.
+     */
+    public int intern( String name )
+    {
+        int h = name.hashCode();
+        int mask = table.length-1;
+        for( int p=h&mask ; ; p=(p+1)&mask )
+        {
+            int id = table[p]-1;
+            if( id<0 ) return add(name,h,p);
+            if( hashes[id]==h && names[id].equals(name) ) return id;
+        }
+    }
+
+    public String name( int id )
+    {
+        return names[id];
+    }
+
+    public int size()
+    {
+        return count;
+    }
+
+    private int add( String name, int h, int p )
+    {
+        if( count==names.length )
+        {
+            names = Arrays.copyOf(names,2*count);
+            hashes = Arrays.copyOf(hashes,2*count);
+        }
+        names[count] = name;
+        hashes[count] = h;
+        table[p] = ++count;
+        if( 2*count>table.length ) rehash();
+        return count-1;
+    }
+
+    private void rehash()
+    {
+        table = new int[2*table.length];
+        int mask = table.length-1;
+        for( int id=0 ; id!=count ; id++ )
+        {
+            int p = hashes[id]&mask;
+            while( table[p]!=0 ) p = (p+1)&mask;
+            table[p] = id+1;
+        }
+    }
+}
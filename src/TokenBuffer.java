@@ -0,0 +1,148 @@
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+	All tokens of one source file, stored as parallel primitive arrays.
+
+	Token i has kind kind(i), which is a character for delimiters or
+	one of the NanoMorphoParser token constants, and occupies
+	length(i) characters of the source starting at start(i).  Lines
+	and columns are counted from 0.  Lexeme strings are only created
+	when asked for.  Indices at or past size() denote end of input,
+	with kind 0 and a null lexeme.
+
+	The source is either a char array or, for pure ASCII files
+	scanned by AsciiLexer, a byte buffer with one byte per character.
+ */
+public final class TokenBuffer
+{
+    private final char[] source;
+    private final ByteBuffer bytes;
+    private final int sourceLength;
+    private int count;
+    private int[] kind;
+    private int[] start;
+    private int[] length;
+    private int[] line;
+    private int[] column;
+
+    public TokenBuffer( char[] source, int sourceLength )
+    {
+        this(source,null,sourceLength);
+    }
+
+    public TokenBuffer( ByteBuffer bytes )
+    {
+        this(null,bytes,bytes.limit());
+    }
+
+    private TokenBuffer( char[] source, ByteBuffer bytes, int sourceLength )
+    {
+        this.source = source;
+        this.bytes = bytes;
+        this.sourceLength = sourceLength;
+        int capacity = sourceLength/4+16;
+        kind = new int[capacity];
+        start = new int[capacity];
+        length = new int[capacity];
+        line = new int[capacity];
+        column = new int[capacity];
+    }
+
+    public void add( int k, int s, int len, int l, int c )
+    {
+        if( count==kind.length )
+        {
+            int capacity = 2*count;
+            kind = Arrays.copyOf(kind,capacity);
+            start = Arrays.copyOf(start,capacity);
+            length = Arrays.copyOf(length,capacity);
+            line = Arrays.copyOf(line,capacity);
+            column = Arrays.copyOf(column,capacity);
+        }
+        kind[count] = k;
+        start[count] = s;
+        length[count] = len;
+        line[count] = l;
+        column[count] = c;
+        count++;
+    }
+
+    public int size()
+    {
+        return count;
+    }
+
+    public int kind( int i )
+    {
+        return i<count ? kind[i] : 0;
+    }
+
+    public int start( int i )
+    {
+        return i<count ? start[i] : sourceLength;
+    }
+
+    public int length( int i )
+    {
+        return i<count ? length[i] : 0;
+    }
+
+    /**
+    	Line of token i, or of the last token if i is past the end.
+     */
+    public int line( int i )
+    {
+        if( count==0 ) return 0;
+        return line[Math.min(i,count-1)];
+    }
+
+    /**
+    	Column of token i, or of the last token if i is past the end.
+     */
+    public int column( int i )
+    {
+        if( count==0 ) return 0;
+        return column[Math.min(i,count-1)];
+    }
+
+    public char charAt( int i, int offset )
+    {
+        if( source!=null ) return source[start[i]+offset];
+        return (char)bytes.get(start[i]+offset);
+    }
+
+    /**
+    	Returns the hash code of the lexeme of token i, equal to the
+    	hashCode() of the String that lexeme(i) would return.
+     */
+    public int hash( int i )
+    {
+        int h = 0;
+        int s = start[i];
+        int end = s+length[i];
+        if( source!=null )
+            for( int k=s ; k!=end ; k++ ) h = 31*h+source[k];
+        else
+            for( int k=s ; k!=end ; k++ ) h = 31*h+(char)bytes.get(k);
+        return h;
+    }
+
+    public boolean lexemeEquals( int i, String s )
+    {
+        int len = length[i];
+        if( s.length()!=len ) return false;
+        for( int k=0 ; k!=len ; k++ )
+            if( charAt(i,k)!=s.charAt(k) ) return false;
+        return true;
+    }
+
+    public String lexeme( int i )
+    {
+        if( i>=count ) return null;
+        if( source!=null ) return new String(source,start[i],length[i]);
+        char[] text = new char[length[i]];
+        for( int k=0 ; k!=text.length ; k++ ) text[k] = (char)bytes.get(start[i]+k);
+        return new String(text);
+    }
+}
@@ -0,0 +1,250 @@
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+
+/**
+	Flow-sensitive type inference for local variables, used to mark
+	operator calls whose operands are both ints or both doubles.
+
+	The type of each slot is tracked through the body in evaluation
+	order.  Arguments start as ANY and locals as NULL, the value the
+	prologue gives them.  Literals have the type of their value, a
+	Store gives its slot the type of the stored value, and the int
+	and double arithmetic operators give an int or a double.  At the
+	end of an if, and at the head of a while loop, the states of the
+	incoming paths are joined; a slot with different types on
+	different paths becomes ANY.  Loops are iterated until the state
+	at their head is stable, and their condition is typed in that
+	state, which covers both copies of a rotated condition.
+
+	Arithmetic on two ints is assumed to give an int, as it does in
+	the engines that use the hints.  An operator defined by the
+	program itself is never specialized.
+
+	The result is a copy of the functions where the specialized
+	operator calls carry Code.INT or Code.DOUBLE as their spec.
+ */
+public final class TypeInference
+{
+    static final int NULL = 0;
+    static final int INT = 1;
+    static final int DOUBLE = 2;
+    static final int OTHER = 3;
+    static final int ANY = 4;
+
+    private final StringBuilder report = new StringBuilder();
+    private CallGraph graph;
+    private final IdentityHashMap<Expr,Integer> specs = new IdentityHashMap<Expr,Integer>();
+    private int specialized, operators;
+
+    public FunctionDef[] infer( FunctionDef[] funs )
+    {
+        graph = new CallGraph(funs);
+        FunctionDef[] res = new FunctionDef[funs.length];
+        for( int i=0 ; i!=funs.length ; i++ )
+        {
+            FunctionDef f = funs[i];
+            specs.clear();
+            int[] state = new int[f.argCount+f.varCount];
+            Arrays.fill(state,0,f.argCount,ANY);
+            Arrays.fill(state,f.argCount,state.length,NULL);
+            inferBody(f.body,state);
+            specialized = operators = 0;
+            res[i] = new FunctionDef(f.name,f.argCount,f.varCount,rewriteBody(f.body));
+            report.append(f.name).append('[').append(f.argCount).append("] ")
+                  .append(specialized).append(" of ").append(operators)
+                  .append(" operator calls specialized\n");
+        }
+        return res;
+    }
+
+    /**
+    	Returns the number of specialized operator calls of each
+    	function, one line per function.
+     */
+    public String report()
+    {
+        return report.toString();
+    }
+
+    private static int join( int a, int b )
+    {
+        return a==b ? a : ANY;
+    }
+
+    private static void join( int[] into, int[] other )
+    {
+        for( int i=0 ; i!=into.length ; i++ ) into[i] = join(into[i],other[i]);
+    }
+
+    private int inferBody( Expr[] body, int[] state )
+    {
+        int t = ANY;
+        for( Expr e: body ) t = infer(e,state);
+        return t;
+    }
+
+    /**
+    	Returns the type of e, updating state to the types of the slots
+    	after e.
+     */
+    private int infer( Expr e, int[] state )
+    {
+        switch( e.kind )
+        {
+        case NanoMorphoParser.NAME:
+            return state[((Expr.Name)e).slot];
+        case NanoMorphoParser.LITERAL:
+            Object v = Literals.parse(((Expr.Literal)e).text);
+            if( v==Literals.UNKNOWN ) return ANY;
+            if( v==null ) return NULL;
+            if( v instanceof Integer ) return INT;
+            if( v instanceof Double ) return DOUBLE;
+            return OTHER;
+        case NanoMorphoParser.STORE:
+            Expr.Store st = (Expr.Store)e;
+            int t = infer(st.value,state);
+            state[st.slot] = t;
+            return t;
+        case NanoMorphoParser.RETURN:
+            infer(((Expr.Return)e).value,state);
+            return ANY;
+        case NanoMorphoParser.BLOCK:
+            return inferBody(((Expr.Block)e).body,state);
+        case NanoMorphoParser.IF:
+            Expr.If ife = (Expr.If)e;
+            int[] out = null;
+            int res = 0;
+            for( int i=0 ; i!=ife.conds.length ; i++ )
+            {
+                infer(ife.conds[i],state);
+                int[] branch = state.clone();
+                int b = inferBody(ife.bodies[i],branch);
+                if( out==null )
+                {
+                    out = branch;
+                    res = b;
+                }
+                else
+                {
+                    join(out,branch);
+                    res = join(res,b);
+                }
+            }
+            int b = ife.elseBody.length==0 ? OTHER : inferBody(ife.elseBody,state);
+            join(out,state);
+            System.arraycopy(out,0,state,0,state.length);
+            return join(res,b);
+        case NanoMorphoParser.WHILE:
+            Expr.While w = (Expr.While)e;
+            int[] head = state.clone();
+            while( true )
+            {
+                int[] s = head.clone();
+                infer(w.cond,s);
+                int[] exit = s.clone();
+                inferBody(w.pre,s);
+                inferBody(w.body,s);
+                join(s,head);
+                if( Arrays.equals(s,head) )
+                {
+                    System.arraycopy(exit,0,state,0,state.length);
+                    return OTHER;
+                }
+                head = s;
+            }
+        case NanoMorphoParser.CALL:
+        case NanoMorphoParser.OPNAME:
+            Expr.Call call = (Expr.Call)e;
+            if( call.name.equals("&&") || call.name.equals("||") )
+            {
+                // The right operand may be skipped
+                infer(call.args[0],state);
+                int[] right = state.clone();
+                infer(call.args[1],right);
+                join(state,right);
+                return ANY;
+            }
+            int[] types = new int[call.args.length];
+            for( int i=0 ; i!=types.length ; i++ ) types[i] = infer(call.args[i],state);
+            if( call.kind!=NanoMorphoParser.CALL || types.length!=2 || graph.lookup(call)>=0 ) return ANY;
+            boolean arith = isArithmetic(call.name);
+            if( !arith && !isComparison(call.name) ) return ANY;
+            if( types[0]==INT && types[1]==INT )
+            {
+                specs.put(call,Code.INT);
+                return arith ? INT : OTHER;
+            }
+            if( types[0]==DOUBLE && types[1]==DOUBLE )
+            {
+                specs.put(call,Code.DOUBLE);
+                return arith ? DOUBLE : OTHER;
+            }
+            specs.remove(call);
+            return arith ? ANY : OTHER;
+        default:
+            return ANY;
+        }
+    }
+
+    static boolean isArithmetic( String op )
+    {
+        switch( op )
+        {
+        case "+": case "-": case "*": case "/": case "%":
+            return true;
+        default:
+            return false;
+        }
+    }
+
+    static boolean isComparison( String op )
+    {
+        switch( op )
+        {
+        case "<": case "<=": case ">": case ">=": case "==": case "!=":
+            return true;
+        default:
+            return false;
+        }
+    }
+
+    private Expr[] rewriteBody( Expr[] body )
+    {
+        Expr[] res = new Expr[body.length];
+        for( int i=0 ; i!=body.length ; i++ ) res[i] = rewrite(body[i]);
+        return res;
+    }
+
+    private Expr rewrite( Expr e )
+    {
+        switch( e.kind )
+        {
+        case NanoMorphoParser.RETURN:
+            return new Expr.Return(rewrite(((Expr.Return)e).value));
+        case NanoMorphoParser.STORE:
+            Expr.Store st = (Expr.Store)e;
+            return new Expr.Store(st.slot,rewrite(st.value));
+        case NanoMorphoParser.WHILE:
+            Expr.While w = (Expr.While)e;
+            return new Expr.While(rewrite(w.cond),rewriteBody(w.pre),rewriteBody(w.body));
+        case NanoMorphoParser.IF:
+            Expr.If ife = (Expr.If)e;
+            Expr[][] bodies = new Expr[ife.bodies.length][];
+            for( int i=0 ; i!=bodies.length ; i++ ) bodies[i] = rewriteBody(ife.bodies[i]);
+            return new Expr.If(rewriteBody(ife.conds),bodies,rewriteBody(ife.elseBody));
+        case NanoMorphoParser.BLOCK:
+            return new Expr.Block(rewriteBody(((Expr.Block)e).body));
+        case NanoMorphoParser.CALL:
+        case NanoMorphoParser.OPNAME:
+            Expr.Call call = (Expr.Call)e;
+            Integer spec = specs.get(e);
+            if( call.kind==NanoMorphoParser.CALL && call.args.length==2
+                && (isArithmetic(call.name) || isComparison(call.name)) && graph.lookup(call)<0 )
+                operators++;
+            if( spec!=null ) specialized++;
+            return new Expr.Call(call.kind,call.name,rewriteBody(call.args),spec==null ? Code.GENERIC : spec);
+        default:
+            return e;
+        }
+    }
+}
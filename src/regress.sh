@@ -0,0 +1,62 @@
+#!/bin/sh
+# Differential check of the optimizer and the execution engines.
+#
+# Runs each program on the Morpho VM, on MasmInterpreter with and
+# without superinstructions, and on the JVM backend: with all
+# optimizations, with none, and with each pass switched off in turn.
+# Every run must print exactly the expected output in the .out file
+# next to the program.  A run that fails must print it up to the
+# failure, and the .out file then ends with a line !error; what the
+# engines print on stderr, and the VM's own error line, differ and
+# are not compared.  The VM does not exit after an error, so its
+# runs are cut off by a timeout.
+#
+# Usage, from this directory after make:
+#	sh regress.sh [regress/prog.nm ...]
+# CLASSES may name another directory holding the compiled classes.
+
+SRC=`pwd`
+CLASSES=${CLASSES:-$SRC}
+PASSES="-nopeephole -notailcalls -nofold -norotate -noslots -noswitch -noinline -nodce -nocse -nolicm -notypes"
+TMP=`mktemp -d`
+trap 'rm -rf "$TMP"' 0
+[ $# -eq 0 ] && set -- regress/*.nm
+failed=0
+runs=0
+for nm in "$@"
+do
+	name=`basename "$nm" .nm`
+	expected="${nm%.nm}.out"
+	cp "$nm" "$TMP/$name.nm"
+	for flags in "" "$PASSES" $PASSES
+	do
+		for engine in morpho interpreter nofuse jvm
+		do
+			case $engine in
+			morpho)
+				(cd "$TMP" &&
+				 java -cp "$CLASSES" NanoMorphoParser $flags "$name.nm" >"$name.masm" &&
+				 java -cp "$SRC/morpho.jar" is.hi.cs.morpho.Morpho -c "$name.masm" >/dev/null &&
+				 timeout 20 java -cp ".:$SRC/morpho.jar" is.hi.cs.morpho.Morpho "$name") >"$TMP/output" 2>/dev/null;;
+			interpreter)
+				java -cp "$CLASSES" MasmInterpreter $flags "$nm" >"$TMP/output" 2>/dev/null;;
+			nofuse)
+				java -cp "$CLASSES" MasmInterpreter -nofuse $flags "$nm" >"$TMP/output" 2>/dev/null;;
+			jvm)
+				java -cp "$CLASSES" MasmInterpreter -jvm $flags "$nm" >"$TMP/output" 2>/dev/null;;
+			esac
+			status=$?
+			grep -v '^Throwable: ' "$TMP/output" >"$TMP/actual"
+			[ $status -ne 0 ] && echo '!error' >>"$TMP/actual"
+			runs=`expr $runs + 1`
+			if ! cmp -s "$expected" "$TMP/actual"
+			then
+				echo "FAIL $nm on $engine with ${flags:-all passes}"
+				diff "$expected" "$TMP/actual" | head -5
+				failed=`expr $failed + 1`
+			fi
+		done
+	done
+done
+echo "$runs runs, $failed failed"
+[ $failed -eq 0 ]